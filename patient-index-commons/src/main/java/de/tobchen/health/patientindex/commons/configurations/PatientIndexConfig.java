@@ -1,5 +1,8 @@
 package de.tobchen.health.patientindex.commons.configurations;
 
+import java.time.Duration;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 
@@ -10,10 +13,28 @@ public record PatientIndexConfig(
     @DefaultValue
     AssigningAuthority pid,
     @DefaultValue
-    Feed feed
+    Feed feed,
+    @DefaultValue
+    Merge merge,
+    @DefaultValue
+    Publisher publisher,
+    @DefaultValue
+    Replicas replicas,
+    @DefaultValue
+    GroupCommit groupCommit,
+    @DefaultValue
+    CrossReference crossReference,
+    @DefaultValue
+    Mllp mllp,
+    @DefaultValue
+    Validation validation
 ) {
     public record Fhir(
-        String server
+        String server,
+        @DefaultValue("1000")
+        int readCacheSize,
+        @DefaultValue("false")
+        boolean pixOperation
     ) { }
 
     public record AssigningAuthority(
@@ -21,13 +42,109 @@ public record PatientIndexConfig(
         String oid
     ) { }
 
+    public record Merge(
+        @DefaultValue("true")
+        boolean compressPaths
+    ) { }
+
+    public record Publisher(
+        @DefaultValue("10000")
+        int queueCapacity,
+        @DefaultValue("100")
+        int batchSize,
+        @DefaultValue("1")
+        int threads,
+        @DefaultValue("block")
+        Backpressure backpressure,
+        @DefaultValue("5s")
+        Duration confirmTimeout
+    ) {
+        public enum Backpressure
+        {
+            BLOCK,
+            DROP,
+            FAIL
+        }
+    }
+
+    public record GroupCommit(
+        @DefaultValue("false")
+        boolean enabled,
+        @DefaultValue("2ms")
+        Duration window,
+        @DefaultValue("100")
+        int maxBatchSize
+    ) { }
+
+    public record Replicas(
+        @DefaultValue
+        List<DataSource> datasources,
+        @DefaultValue("true")
+        boolean readYourWrites,
+        @DefaultValue("1s")
+        Duration pollInterval
+    ) {
+        public record DataSource(
+            String url,
+            String username,
+            String password,
+            @DefaultValue("10")
+            int maximumPoolSize
+        ) { }
+    }
+
+    public record CrossReference(
+        @DefaultValue("false")
+        boolean enabled,
+        @DefaultValue("5s")
+        Duration retryInterval,
+        String snapshotFile,
+        @DefaultValue("15m")
+        Duration snapshotInterval,
+        @DefaultValue("5m")
+        Duration replayMargin,
+        @DefaultValue
+        Filter filter
+    ) {
+        public record Filter(
+            @DefaultValue("false")
+            boolean enabled,
+            @DefaultValue("1000000")
+            long expectedIdentifiers,
+            @DefaultValue("0.01")
+            double falsePositiveRate
+        ) { }
+    }
+
+    public record Mllp(
+        @DefaultValue("false")
+        boolean enabled,
+        @DefaultValue("2575")
+        int port,
+        @DefaultValue("1048576")
+        int maxMessageSize,
+        @DefaultValue("64")
+        int maxPipelinedRequests
+    ) { }
+
+    public record Validation(
+        @DefaultValue("false")
+        boolean enabled
+    ) { }
+
     public record Feed(
         @DefaultValue
         Sender sender,
         @DefaultValue
         Receiver receiver,
         @DefaultValue("T")
-        String processingMode
+        String processingMode,
+        @DefaultValue
+        List<Subscriber> subscribers,
+        @DefaultValue
+        Coalescing coalescing,
+        @DefaultValue
+        Resync resync
     ) {
         public record Sender(
             @DefaultValue
@@ -44,5 +161,42 @@ public record PatientIndexConfig(
             String host,
             Integer port
         ) { }
+
+        public record Subscriber(
+            String name,
+            @DefaultValue
+            AssigningAuthority application,
+            @DefaultValue
+            AssigningAuthority facility,
+            String host,
+            Integer port,
+            @DefaultValue("1")
+            int concurrency,
+            @DefaultValue("10")
+            int batchSize,
+            @DefaultValue("1s")
+            Duration initialBackoff,
+            @DefaultValue("1m")
+            Duration maxBackoff
+        ) { }
+
+        public record Coalescing(
+            @DefaultValue("false")
+            boolean enabled,
+            @DefaultValue("5s")
+            Duration window
+        ) { }
+
+        public record Resync(
+            @DefaultValue("false")
+            boolean enabled,
+            @DefaultValue("100")
+            int rate,
+            @DefaultValue("100")
+            int pageSize,
+            String checkpointFile,
+            @DefaultValue
+            List<String> subscribers
+        ) { }
     }
 }
@@ -0,0 +1,77 @@
+package de.tobchen.health.patientindex.commons.parsers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Encodes and parses FHIR JSON with one preconfigured parser per thread instead of a new parser per message.
+ * Parsers are not thread-safe, but can be reused by the thread that created them.
+ */
+public class ReusableJsonParser
+{
+    // Larger buffers are not kept for the next resource
+    private static final int MAX_REUSED_BUFFER_SIZE = 1024 * 1024;
+
+    private final ThreadLocal<IParser> parsers;
+
+    private final ThreadLocal<ByteArrayOutputStream> buffers = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+    public ReusableJsonParser(FhirContext context)
+    {
+        this.parsers = ThreadLocal.withInitial(() -> context.newJsonParser()
+            .setPrettyPrint(false)
+            .setSuppressNarratives(true));
+    }
+
+    public String encodeToString(IBaseResource resource)
+    {
+        return parsers.get().encodeResourceToString(resource);
+    }
+
+    public byte[] encodeToBytes(IBaseResource resource)
+    {
+        // Encodes as UTF-8 into a per-thread buffer, skipping the intermediate string
+        var buffer = buffers.get();
+        buffer.reset();
+
+        try
+        {
+            var writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+            parsers.get().encodeResourceToWriter(resource, writer);
+            writer.flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        var bytes = buffer.toByteArray();
+
+        if (bytes.length > MAX_REUSED_BUFFER_SIZE)
+        {
+            buffers.remove();
+        }
+
+        return bytes;
+    }
+
+    public <T extends IBaseResource> T parse(Class<T> type, byte[] json)
+    {
+        // HAPI reads input streams as UTF-8, skipping the intermediate string
+        return parsers.get().parseResource(type, new ByteArrayInputStream(json));
+    }
+
+    public <T extends IBaseResource> T parse(Class<T> type, String json)
+    {
+        return parsers.get().parseResource(type, json);
+    }
+}
@@ -4,6 +4,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import ca.uhn.fhir.context.FhirContext;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
 
 @Configuration
 public class FhirConfig
@@ -19,4 +20,10 @@ public class FhirConfig
 
         return context;
     }
+
+    @Bean
+    public ReusableJsonParser jsonParser(FhirContext context)
+    {
+        return new ReusableJsonParser(context);
+    }
 }
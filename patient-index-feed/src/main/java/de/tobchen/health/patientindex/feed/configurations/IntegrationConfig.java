@@ -1,46 +1,183 @@
 package de.tobchen.health.patientindex.feed.configurations;
 
+import java.time.Duration;
+import java.util.List;
+
+import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.integration.amqp.dsl.Amqp;
+import org.springframework.integration.amqp.dsl.AmqpOutboundChannelAdapterSpec;
+import org.springframework.integration.channel.DirectChannel;
 import org.springframework.integration.dsl.IntegrationFlow;
+import org.springframework.integration.dsl.context.IntegrationFlowContext;
+import org.springframework.integration.handler.advice.RequestHandlerRetryAdvice;
 import org.springframework.integration.ip.dsl.Tcp;
+import org.springframework.integration.ip.tcp.connection.CachingClientConnectionFactory;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.retry.support.RetryTemplate;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.hl7v2.parser.Parser;
 import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig.Feed.Subscriber;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
+import de.tobchen.health.patientindex.feed.handlers.PatientCoalescingHandler;
 import de.tobchen.health.patientindex.feed.serializers.MllpSerializer;
+import de.tobchen.health.patientindex.feed.splitters.PatientToNotificationsSplitter;
 import de.tobchen.health.patientindex.feed.transformers.BytesToPatientTransformer;
-import de.tobchen.health.patientindex.feed.transformers.Hl7v2ToBytesTransformer;
-import de.tobchen.health.patientindex.feed.transformers.PatientToHl7v2AdtTransformer;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
 
 @Configuration
 public class IntegrationConfig
 {
+    private static final AttributeKey<String> SUBSCRIBER = AttributeKey.stringKey("subscriber");
+
+    /**
+     * @return The configured subscribers or, if there are none, the receiver as the only one
+     */
+    static List<Subscriber> subscribers(PatientIndexConfig config)
+    {
+        var subscribers = config.feed().subscribers();
+        if (!subscribers.isEmpty())
+        {
+            return subscribers;
+        }
+
+        var receiver = config.feed().receiver();
+        return List.of(new Subscriber("receiver", receiver.application(), receiver.facility(),
+            receiver.host(), receiver.port(), 1, 10, Duration.ofSeconds(1), Duration.ofMinutes(1)));
+    }
+
+    /**
+     * Optionally coalesces patients, then renders each patient once per format and routes the messages to the
+     * subscribers' queues.
+     */
     @Bean
     public IntegrationFlow flow(
-        FhirContext context, Parser hl7Parser,
+        ReusableJsonParser jsonParser, Parser hl7Parser,
         ConnectionFactory connectionFactory, Queue queue,
+        RabbitTemplate rabbitTemplate, OpenTelemetry openTelemetry,
         PatientIndexConfig config)
     {
-        var host = config.feed().receiver().host();
-        var port = config.feed().receiver().port();
+        var coalescing = config.feed().coalescing();
+
+        var patients = IntegrationFlow
+            .from(Amqp.inboundAdapter(connectionFactory, queue))
+            .transform(new BytesToPatientTransformer(jsonParser));
+
+        if (coalescing.enabled())
+        {
+            patients = patients.handle(new PatientCoalescingHandler(openTelemetry, coalescing.window()));
+        }
 
-        var serializer = new MllpSerializer();
+        return patients
+            .split(new PatientToNotificationsSplitter(config, subscribers(config), hl7Parser))
+            .handle(notificationPublisher(rabbitTemplate))
+            .get();
+    }
+
+    @Bean
+    public MessageChannel resyncChannel()
+    {
+        return new DirectChannel();
+    }
+
+    /**
+     * Renders resynchronized patients for the resync's subscribers (or all) like {@link #flow}, without coalescing.
+     */
+    @Bean
+    public IntegrationFlow resyncFlow(MessageChannel resyncChannel, Parser hl7Parser,
+        RabbitTemplate rabbitTemplate, PatientIndexConfig config)
+    {
+        var resyncSubscriberNames = config.feed().resync().subscribers();
+
+        var resyncSubscribers = subscribers(config);
+        if (!resyncSubscriberNames.isEmpty())
+        {
+            resyncSubscribers = resyncSubscribers.stream()
+                .filter(subscriber -> resyncSubscriberNames.contains(subscriber.name()))
+                .toList();
+        }
 
         return IntegrationFlow
-            .from(Amqp.inboundAdapter(connectionFactory, queue))
-            .transform(new BytesToPatientTransformer(context))
-            .transform(new PatientToHl7v2AdtTransformer(config))
-            .transform(new Hl7v2ToBytesTransformer(hl7Parser))
-            .handle(Tcp.outboundGateway(Tcp.netClient(
-                    host, port)
-                .deserializer(serializer)
-                .serializer(serializer)
-                .connectTimeout(15)
-                .soTimeout(10000)))
-            .nullChannel();
+            .from(resyncChannel)
+            .split(new PatientToNotificationsSplitter(config, resyncSubscribers, hl7Parser))
+            .handle(notificationPublisher(rabbitTemplate))
+            .get();
+    }
+
+    /**
+     * Sends each subscriber's queue to the subscriber with its own consumers, connections and backoff.
+     */
+    @Bean
+    public SmartInitializingSingleton subscriberFlows(
+        IntegrationFlowContext flowContext, ConnectionFactory connectionFactory,
+        OpenTelemetry openTelemetry, PatientIndexConfig config)
+    {
+        var meter = openTelemetry.getMeter(IntegrationConfig.class.getName());
+        var sentCounter = meter.counterBuilder("patient_index.feed.notifications.sent")
+            .setDescription("Notifications answered by subscribers, by subscriber")
+            .build();
+
+        return () -> {
+            for (var subscriber : subscribers(config))
+            {
+                if (subscriber.concurrency() > 1)
+                {
+                    // Consumers take messages from one queue independently, so a patient's updates may overtake
+                    LoggerFactory.getLogger(IntegrationConfig.class).warn(
+                        "Subscriber {} has a concurrency of {}, its notifications may be sent out of order",
+                        subscriber.name(), subscriber.concurrency());
+                }
+
+                var serializer = new MllpSerializer();
+
+                // One connection per consumer
+                var tcpConnectionFactory = new CachingClientConnectionFactory(Tcp.netClient(
+                        subscriber.host(), subscriber.port())
+                    .deserializer(serializer)
+                    .serializer(serializer)
+                    .connectTimeout(15)
+                    .soTimeout(10000)
+                    .getObject(), subscriber.concurrency());
+
+                // Blocks only this subscriber's consumers, its messages wait in its queue
+                var retryAdvice = new RequestHandlerRetryAdvice();
+                retryAdvice.setRetryTemplate(RetryTemplate.builder()
+                    .exponentialBackoff(subscriber.initialBackoff(), 2, subscriber.maxBackoff())
+                    .infiniteRetry()
+                    .build());
+
+                var attributes = Attributes.of(SUBSCRIBER, subscriber.name());
+
+                var subscriberFlow = IntegrationFlow
+                    .from(Amqp.inboundAdapter(connectionFactory, RabbitConfig.subscriberQueueName(subscriber.name()))
+                        .configureContainer(container -> container
+                            .concurrentConsumers(subscriber.concurrency())
+                            .prefetchCount(subscriber.batchSize())
+                            .batchSize(subscriber.batchSize())))
+                    .handle(Tcp.outboundGateway(tcpConnectionFactory), endpoint -> endpoint.advice(retryAdvice))
+                    .handle(message -> sentCounter.add(1, attributes))
+                    .get();
+
+                flowContext.registration(subscriberFlow)
+                    .id("subscriber." + subscriber.name())
+                    .addBean(tcpConnectionFactory)
+                    .register();
+            }
+        };
+    }
+
+    private static AmqpOutboundChannelAdapterSpec notificationPublisher(RabbitTemplate rabbitTemplate)
+    {
+        return Amqp.outboundAdapter(rabbitTemplate)
+            .exchangeName(RabbitConfig.NOTIFICATION_EXCHANGE)
+            .routingKeyExpression("headers['" + PatientToNotificationsSplitter.SUBSCRIBER_HEADER + "']");
     }
 }
@@ -1,15 +1,29 @@
 package de.tobchen.health.patientindex.feed.configurations;
 
+import java.util.ArrayList;
+
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.DirectExchange;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+
 @Configuration
 public class RabbitConfig
 {
+    public static final String NOTIFICATION_EXCHANGE = "patient-index-feed.notification";
+
+    public static String subscriberQueueName(String subscriber)
+    {
+        return "patient-index-feed." + subscriber;
+    }
+
     @Bean
     public TopicExchange topic()
     {
@@ -30,4 +44,31 @@ public class RabbitConfig
             .to(topic)
             .with("Patient");
     }
+
+    @Bean
+    public DirectExchange notificationExchange()
+    {
+        return new DirectExchange(NOTIFICATION_EXCHANGE);
+    }
+
+    /**
+     * One durable queue per subscriber, so a slow or unreachable subscriber only backs up its own queue.
+     */
+    @Bean
+    public Declarables subscriberQueues(DirectExchange notificationExchange, PatientIndexConfig config)
+    {
+        var declarables = new ArrayList<Declarable>();
+
+        for (var subscriber : IntegrationConfig.subscribers(config))
+        {
+            var queue = new Queue(subscriberQueueName(subscriber.name()), true);
+            declarables.add(queue);
+            declarables.add(BindingBuilder
+                .bind(queue)
+                .to(notificationExchange)
+                .with(subscriber.name()));
+        }
+
+        return new Declarables(declarables);
+    }
 }
@@ -0,0 +1,116 @@
+package de.tobchen.health.patientindex.feed.handlers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Patient.LinkType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.handler.AbstractMessageProducingHandler;
+import org.springframework.messaging.Message;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+
+/**
+ * Holds patients for a while and forwards only the newest state of each. Merged patients (A40) are never held
+ * or suppressed; a state held for them is forwarded first.
+ */
+public class PatientCoalescingHandler extends AbstractMessageProducingHandler
+{
+    private final Logger logger = LoggerFactory.getLogger(PatientCoalescingHandler.class);
+
+    private final Duration window;
+
+    private final LongCounter suppressedCounter;
+
+    // Also guards sending, so held and passed messages keep their order
+    private final Map<String, Message<?>> pending = new HashMap<>();
+
+    public PatientCoalescingHandler(OpenTelemetry openTelemetry, Duration window)
+    {
+        this.window = window;
+
+        var meter = openTelemetry.getMeter(PatientCoalescingHandler.class.getName());
+        this.suppressedCounter = meter.counterBuilder("patient_index.feed.coalescing.suppressed")
+            .setDescription("Patient states replaced by a newer one before being forwarded")
+            .build();
+    }
+
+    @Override
+    protected void handleMessageInternal(Message<?> message)
+    {
+        var patient = (Patient) message.getPayload();
+        var id = patient.getIdPart();
+
+        synchronized (pending)
+        {
+            if (isMerged(patient))
+            {
+                var held = pending.remove(id);
+                if (held != null)
+                {
+                    try
+                    {
+                        sendOutputs(held, held);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Still scheduled for release, which retries it
+                        pending.put(id, held);
+                        throw e;
+                    }
+                }
+
+                sendOutputs(message, message);
+            }
+            else if (pending.put(id, message) == null)
+            {
+                getTaskScheduler().schedule(() -> release(id), Instant.now().plus(window));
+            }
+            else
+            {
+                logger.debug("Suppressing older state of patient {}", id);
+                suppressedCounter.add(1);
+            }
+        }
+    }
+
+    private void release(String id)
+    {
+        synchronized (pending)
+        {
+            var message = pending.remove(id);
+            if (message != null)
+            {
+                try
+                {
+                    sendOutputs(message, message);
+                }
+                catch (RuntimeException e)
+                {
+                    // Held again, so a newer state received until the retry still replaces it
+                    logger.warn("Cannot forward patient {}, retrying in {}", id, window, e);
+                    pending.put(id, message);
+                    getTaskScheduler().schedule(() -> release(id), Instant.now().plus(window));
+                }
+            }
+        }
+    }
+
+    private static boolean isMerged(Patient patient)
+    {
+        for (var link : patient.getLink())
+        {
+            if (LinkType.REPLACEDBY.equals(link.getType()))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
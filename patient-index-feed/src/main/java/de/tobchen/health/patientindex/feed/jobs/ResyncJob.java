@@ -0,0 +1,264 @@
+package de.tobchen.health.patientindex.feed.jobs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.r5.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.stereotype.Component;
+
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.trace.Tracer;
+
+/**
+ * Sends all patients of the Patient Index again, e.g. after a subscriber's outage or to onboard a new one.
+ * Patients are read from the snapshot page by page in last update order, each page right before it is sent,
+ * and sent at a limited rate. The position of each page sent is written to a checkpoint file, from which a
+ * restarted resync resumes.
+ */
+@Component
+public class ResyncJob implements SmartLifecycle
+{
+    // Set by the Patient Index's $snapshot, the position to continue after
+    private static final String SNAPSHOT_AFTER_HEADER = "X-Patient-Index-Snapshot-After";
+
+    private final Logger logger = LoggerFactory.getLogger(ResyncJob.class);
+
+    private final Tracer tracer;
+    private final LongCounter resentCounter;
+
+    private final boolean enabled;
+    private final String snapshotUri;
+    private final long nanosPerPatient;
+    private final int pageSize;
+    private final @Nullable Path checkpointFile;
+
+    private final ReusableJsonParser parser;
+
+    private final MessageChannel resyncChannel;
+
+    private volatile @Nullable Thread thread = null;
+
+    public ResyncJob(OpenTelemetry openTelemetry, PatientIndexConfig config, ReusableJsonParser jsonParser,
+        @Qualifier("resyncChannel") MessageChannel resyncChannel)
+    {
+        this.tracer = openTelemetry.getTracer(ResyncJob.class.getName());
+
+        var meter = openTelemetry.getMeter(ResyncJob.class.getName());
+        this.resentCounter = meter.counterBuilder("patient_index.feed.resync.patients")
+            .setDescription("Patients sent again by the resync")
+            .build();
+
+        var resyncConfig = config.feed().resync();
+        this.enabled = resyncConfig.enabled();
+        this.snapshotUri = config.fhir().server() + "/Patient/$snapshot";
+        this.nanosPerPatient = TimeUnit.SECONDS.toNanos(1) / Math.max(resyncConfig.rate(), 1);
+        this.pageSize = Math.max(resyncConfig.pageSize(), 1);
+
+        var checkpointFileName = resyncConfig.checkpointFile();
+        this.checkpointFile = checkpointFileName != null ? Path.of(checkpointFileName) : null;
+
+        this.parser = jsonParser;
+
+        this.resyncChannel = resyncChannel;
+    }
+
+    @Override
+    public void start()
+    {
+        if (enabled)
+        {
+            thread = Thread.ofPlatform().name("resync").start(this::run);
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        var runningThread = thread;
+        if (runningThread != null)
+        {
+            runningThread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return thread != null;
+    }
+
+    private void run()
+    {
+        var span = tracer.spanBuilder("ResyncJob.run").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            var after = readCheckpoint();
+            if (after != null)
+            {
+                logger.info("Resuming resync after {}", after);
+            }
+            else
+            {
+                logger.info("Starting resync");
+            }
+
+            var count = resync(after);
+
+            span.setAttribute("patient_index.resync.size", count);
+            logger.info("Resync of {} patients complete", count);
+        }
+        catch (InterruptedException e)
+        {
+            logger.info("Resync interrupted");
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.error("Resync failed, it resumes from its checkpoint when restarted", e);
+            span.recordException(e);
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
+    private long resync(@Nullable String after) throws IOException, InterruptedException
+    {
+        try (var client = HttpClient.newHttpClient())
+        {
+            long count = 0;
+            var position = after;
+
+            while (true)
+            {
+                var startedAt = System.nanoTime();
+
+                // Read right before sending, patients updated afterwards come again in a later page
+                var page = fetchPage(client, position);
+                for (var patient : page.patients())
+                {
+                    resyncChannel.send(MessageBuilder.withPayload(patient).build());
+                    resentCounter.add(1);
+                }
+                count += page.patients().size();
+
+                if (page.next() != null)
+                {
+                    position = page.next();
+                    writeCheckpoint(position);
+                }
+
+                if (page.patients().size() < pageSize)
+                {
+                    return count;
+                }
+
+                // Throttled between pages, so no snapshot is held open while waiting
+                var wait = startedAt + page.patients().size() * nanosPerPatient - System.nanoTime();
+                if (wait > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                else if (Thread.interrupted())
+                {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    private Page fetchPage(HttpClient client, @Nullable String after) throws IOException, InterruptedException
+    {
+        var uri = snapshotUri + "?count=" + pageSize;
+        if (after != null)
+        {
+            uri += "&after=" + URLEncoder.encode(after, StandardCharsets.UTF_8);
+        }
+
+        var request = HttpRequest.newBuilder(URI.create(uri))
+            .header("Accept-Encoding", "gzip")
+            .GET()
+            .build();
+
+        var response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        try (var body = response.body())
+        {
+            if (response.statusCode() != 200)
+            {
+                throw new IOException("Snapshot request failed with status " + response.statusCode());
+            }
+
+            var gzipped = response.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+
+            var reader = new BufferedReader(new InputStreamReader(
+                gzipped ? new GZIPInputStream(body) : body, StandardCharsets.UTF_8));
+
+            var patients = new ArrayList<Patient>(pageSize);
+
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!line.isBlank())
+                {
+                    patients.add(parser.parse(Patient.class, line));
+                }
+            }
+
+            return new Page(patients, response.headers().firstValue(SNAPSHOT_AFTER_HEADER).orElse(null));
+        }
+    }
+
+    private @Nullable String readCheckpoint() throws IOException
+    {
+        if (checkpointFile == null || !Files.exists(checkpointFile))
+        {
+            return null;
+        }
+
+        return Files.readString(checkpointFile).strip();
+    }
+
+    private void writeCheckpoint(String position) throws IOException
+    {
+        if (checkpointFile != null)
+        {
+            // Replaced at once, so an interrupted write leaves the previous checkpoint
+            var tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            Files.writeString(tempFile, position);
+            Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private record Page(List<Patient> patients, @Nullable String next) { }
+}
@@ -0,0 +1,82 @@
+package de.tobchen.health.patientindex.feed.splitters;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.splitter.AbstractMessageSplitter;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import ca.uhn.hl7v2.parser.Parser;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig.AssigningAuthority;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig.Feed.Subscriber;
+import de.tobchen.health.patientindex.feed.transformers.Hl7v2ToBytesTransformer;
+import de.tobchen.health.patientindex.feed.transformers.PatientToHl7v2AdtTransformer;
+
+/**
+ * Splits a patient into one encoded HL7v2 ADT message per subscriber. Subscribers with the same receiving
+ * application and facility get the same message, so each message is rendered only once.
+ */
+public class PatientToNotificationsSplitter extends AbstractMessageSplitter
+{
+    public static final String SUBSCRIBER_HEADER = "patient_index_subscriber";
+
+    private record Format(PatientToHl7v2AdtTransformer transformer, List<String> subscribers) { }
+
+    private final Logger logger = LoggerFactory.getLogger(PatientToNotificationsSplitter.class);
+
+    private final List<Format> formats = new ArrayList<>();
+
+    private final Hl7v2ToBytesTransformer encoder;
+
+    public PatientToNotificationsSplitter(PatientIndexConfig config, List<Subscriber> subscribers, Parser parser)
+    {
+        var subscribersByReceiver = new LinkedHashMap<List<AssigningAuthority>, List<String>>();
+        for (var subscriber : subscribers)
+        {
+            subscribersByReceiver
+                .computeIfAbsent(List.of(subscriber.application(), subscriber.facility()), k -> new ArrayList<>())
+                .add(subscriber.name());
+        }
+
+        for (var entry : subscribersByReceiver.entrySet())
+        {
+            var receiver = entry.getKey();
+            formats.add(new Format(new PatientToHl7v2AdtTransformer(config, receiver.get(0), receiver.get(1)),
+                entry.getValue()));
+        }
+
+        this.encoder = new Hl7v2ToBytesTransformer(parser);
+    }
+
+    @Override
+    protected Object splitMessage(Message<?> message)
+    {
+        var notifications = new ArrayList<Message<byte[]>>();
+
+        for (var format : formats)
+        {
+            var hl7Message = format.transformer().transform(message);
+            if (hl7Message == null)
+            {
+                logger.debug("No HL7v2 message for subscribers {}", format.subscribers());
+                continue;
+            }
+
+            var payload = (byte[]) encoder.transform(hl7Message).getPayload();
+
+            for (var subscriber : format.subscribers())
+            {
+                notifications.add(MessageBuilder.withPayload(payload)
+                    .setHeader(SUBSCRIBER_HEADER, subscriber)
+                    .build());
+            }
+        }
+
+        return notifications;
+    }
+}
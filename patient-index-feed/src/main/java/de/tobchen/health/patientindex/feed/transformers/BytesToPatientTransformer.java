@@ -1,25 +1,22 @@
 package de.tobchen.health.patientindex.feed.transformers;
 
-import java.nio.charset.StandardCharsets;
-
 import org.hl7.fhir.r5.model.Patient;
 import org.springframework.integration.transformer.AbstractPayloadTransformer;
 
-import ca.uhn.fhir.context.FhirContext;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
 
 public class BytesToPatientTransformer extends AbstractPayloadTransformer<byte[], Patient>
 {
-    private final FhirContext context;
+    private final ReusableJsonParser parser;
 
-    public BytesToPatientTransformer(FhirContext context)
+    public BytesToPatientTransformer(ReusableJsonParser parser)
     {
-        this.context = context;
+        this.parser = parser;
     }
 
     @Override
     protected Patient transformPayload(byte[] payload)
     {
-        return context.newJsonParser().parseResource(Patient.class,
-            new String(payload, StandardCharsets.UTF_8));
+        return parser.parse(Patient.class, payload);
     }    
 }
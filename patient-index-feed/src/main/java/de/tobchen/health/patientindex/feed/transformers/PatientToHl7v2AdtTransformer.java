@@ -19,6 +19,7 @@ import ca.uhn.hl7v2.model.v231.segment.EVN;
 import ca.uhn.hl7v2.model.v231.segment.MSH;
 import ca.uhn.hl7v2.model.v231.segment.PID;
 import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig.AssigningAuthority;
 
 public class PatientToHl7v2AdtTransformer extends AbstractTransformer
 {
@@ -26,9 +27,21 @@ public class PatientToHl7v2AdtTransformer extends AbstractTransformer
 
     private final PatientIndexConfig config;
 
+    private final AssigningAuthority receivingApplication;
+    private final AssigningAuthority receivingFacility;
+
     public PatientToHl7v2AdtTransformer(PatientIndexConfig config)
+    {
+        this(config, config.feed().receiver().application(), config.feed().receiver().facility());
+    }
+
+    public PatientToHl7v2AdtTransformer(PatientIndexConfig config,
+        AssigningAuthority receivingApplication, AssigningAuthority receivingFacility)
     {
         this.config = config;
+
+        this.receivingApplication = receivingApplication;
+        this.receivingFacility = receivingFacility;
     }
 
     @Override
@@ -135,12 +148,12 @@ public class PatientToHl7v2AdtTransformer extends AbstractTransformer
             sendingFac.getUniversalID().setValue(config.feed().sender().facility().oid());
             sendingFac.getUniversalIDType().setValue("ISO");
             var receivingApp = msh.getReceivingApplication();
-            receivingApp.getNamespaceID().setValue(config.feed().receiver().application().namespace());
-            receivingApp.getUniversalID().setValue(config.feed().receiver().application().oid());
+            receivingApp.getNamespaceID().setValue(receivingApplication.namespace());
+            receivingApp.getUniversalID().setValue(receivingApplication.oid());
             receivingApp.getUniversalIDType().setValue("ISO");
             var receivingFac = msh.getReceivingFacility();
-            receivingFac.getNamespaceID().setValue(config.feed().receiver().facility().namespace());
-            receivingFac.getUniversalID().setValue(config.feed().receiver().facility().oid());
+            receivingFac.getNamespaceID().setValue(receivingFacility.namespace());
+            receivingFac.getUniversalID().setValue(receivingFacility.oid());
             receivingFac.getUniversalIDType().setValue("ISO");
 
             msh.getDateTimeOfMessage().getTimeOfAnEvent().setValue(new Date());
@@ -3,9 +3,13 @@ package de.tobchen.health.patientindex.main;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
 
 @ConfigurationPropertiesScan
 @SpringBootApplication
+@EnableConfigurationProperties(PatientIndexConfig.class)
 public class PatientIndexMainApplication
 {
 	public static void main(String[] args)
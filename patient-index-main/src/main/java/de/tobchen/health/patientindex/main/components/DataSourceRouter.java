@@ -0,0 +1,352 @@
+package de.tobchen.health.patientindex.main.components;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+
+/**
+ * Hands out a {@link DSLContext} per role: the primary for writes, replicas (if configured) for reads.
+ * Replicas are polled for their replay position. With read-your-writes enabled, clients get the position of
+ * their writes and may send it with later reads: such reads only use a replica that has replayed that
+ * position, otherwise they fall back to the primary. Reads without a position use any reachable replica.
+ */
+@Component
+public class DataSourceRouter implements SmartLifecycle
+{
+    private static final AttributeKey<String> DATASOURCE_KEY = AttributeKey.stringKey("datasource");
+
+    private static final Field<Long> CURRENT_LSN = DSL.field("pg_current_wal_lsn() - '0/0'::pg_lsn", Long.class);
+    private static final Field<Long> REPLAYED_LSN = DSL.field(
+        "coalesce(pg_last_wal_replay_lsn(), pg_current_wal_lsn()) - '0/0'::pg_lsn", Long.class);
+    private static final Field<Double> REPLAY_LAG = DSL.field(
+        "coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()), 0)", Double.class);
+
+    private final Logger logger = LoggerFactory.getLogger(DataSourceRouter.class);
+
+    private final DSLContext primary;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final boolean readYourWrites;
+    private final long pollIntervalMillis;
+
+    // Highest WAL position committed by this instance, handed to writing clients
+    private final AtomicLong writtenLsn = new AtomicLong();
+
+    // WAL position the current request's reads must see, as sent by its client
+    private final ThreadLocal<Long> readAfterLsn = ThreadLocal.withInitial(() -> 0L);
+
+    @Nullable
+    private ScheduledExecutorService monitor = null;
+    @Nullable
+    private ScheduledFuture<?> monitorFuture = null;
+
+    public DataSourceRouter(DSLContext primary, DataSource primaryDataSource, OpenTelemetry openTelemetry,
+        PatientIndexConfig config)
+    {
+        this.primary = primary;
+
+        var replicasConfig = config.replicas();
+        this.readYourWrites = replicasConfig.readYourWrites();
+        this.pollIntervalMillis = replicasConfig.pollInterval().toMillis();
+
+        var meter = openTelemetry.getMeter(DataSourceRouter.class.getName());
+
+        if (primaryDataSource instanceof HikariDataSource hikari)
+        {
+            registerPoolMetrics(meter, "primary", hikari);
+        }
+
+        var datasources = replicasConfig.datasources();
+        for (int i = 0; i < datasources.size(); ++i)
+        {
+            var datasource = datasources.get(i);
+            var name = "replica-" + i;
+
+            var hikariConfig = new HikariConfig();
+            hikariConfig.setPoolName(name);
+            hikariConfig.setJdbcUrl(datasource.url());
+            hikariConfig.setUsername(datasource.username());
+            hikariConfig.setPassword(datasource.password());
+            hikariConfig.setMaximumPoolSize(datasource.maximumPoolSize());
+            hikariConfig.setReadOnly(true);
+            // Replicas may come up after this instance, the monitor keeps them unused until reachable
+            hikariConfig.setInitializationFailTimeout(-1);
+
+            var dataSource = new HikariDataSource(hikariConfig);
+            var replica = new Replica(name, dataSource, DSL.using(dataSource, SQLDialect.POSTGRES));
+            replicas.add(replica);
+
+            registerPoolMetrics(meter, name, dataSource);
+        }
+
+        meter.gaugeBuilder("patient_index.datasource.replica.lag")
+            .setDescription("Time since the last transaction replayed by a replica")
+            .setUnit("s")
+            .buildWithCallback(measurement -> {
+                for (var replica : replicas)
+                {
+                    if (replica.reachable)
+                    {
+                        measurement.record(replica.lagSeconds, Attributes.of(DATASOURCE_KEY, replica.name));
+                    }
+                }
+            });
+        meter.gaugeBuilder("patient_index.datasource.replica.lag.bytes")
+            .setDescription("WAL written by this instance but not yet replayed by a replica")
+            .setUnit("By")
+            .ofLongs()
+            .buildWithCallback(measurement -> {
+                var written = writtenLsn.get();
+                for (var replica : replicas)
+                {
+                    if (replica.reachable)
+                    {
+                        measurement.record(Math.max(0, written - replica.replayedLsn),
+                            Attributes.of(DATASOURCE_KEY, replica.name));
+                    }
+                }
+            });
+    }
+
+    /**
+     * The context for writes and for reads that must see the latest state.
+     */
+    public DSLContext writer()
+    {
+        return primary;
+    }
+
+    /**
+     * The context for reads, a replica if one is reachable and has replayed the current request's position.
+     */
+    public DSLContext reader()
+    {
+        if (replicas.isEmpty())
+        {
+            return primary;
+        }
+
+        var required = readYourWrites ? readAfterLsn.get() : 0;
+
+        var start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); ++i)
+        {
+            var replica = replicas.get((start + i) % replicas.size());
+            if (replica.reachable && replica.replayedLsn >= required)
+            {
+                return replica.dsl;
+            }
+        }
+
+        return primary;
+    }
+
+    /**
+     * Sets the WAL position the current thread's reads must see, 0 for none.
+     */
+    public void readAfter(long lsn)
+    {
+        readAfterLsn.set(lsn);
+    }
+
+    public void clearReadAfter()
+    {
+        readAfterLsn.remove();
+    }
+
+    /**
+     * @return The WAL position the current thread's reads must see, 0 for none
+     */
+    public long readAfterPosition()
+    {
+        return readYourWrites ? readAfterLsn.get() : 0;
+    }
+
+    /**
+     * @return A WAL position at or after all writes this instance committed, 0 if positions are not tracked
+     */
+    public long writtenPosition()
+    {
+        return writtenLsn.get();
+    }
+
+    /**
+     * Records the primary's current WAL position after a committed write, if clients may read after it.
+     */
+    public void written()
+    {
+        if (replicas.isEmpty() || !readYourWrites)
+        {
+            return;
+        }
+
+        var lsn = primary.select(CURRENT_LSN).fetchOne(CURRENT_LSN);
+        if (lsn != null)
+        {
+            writtenLsn.accumulateAndGet(lsn, Math::max);
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        if (!replicas.isEmpty())
+        {
+            var executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("replica-monitor").factory());
+            monitorFuture = executor.scheduleWithFixedDelay(this::poll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+            monitor = executor;
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        var executor = monitor;
+        if (executor != null)
+        {
+            var future = monitorFuture;
+            if (future != null)
+            {
+                future.cancel(false);
+            }
+            executor.shutdown();
+
+            monitor = null;
+            monitorFuture = null;
+        }
+
+        for (var replica : replicas)
+        {
+            replica.reachable = false;
+            replica.dataSource.close();
+        }
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return monitor != null;
+    }
+
+    @Override
+    public int getPhase()
+    {
+        // Stop only after the web server has stopped taking requests, so no read hits a closed pool
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    private void poll()
+    {
+        for (var replica : replicas)
+        {
+            try
+            {
+                var record = replica.dsl.select(REPLAYED_LSN, REPLAY_LAG).fetchOne();
+                if (record == null || record.value1() == null)
+                {
+                    throw new IllegalStateException("No replay position");
+                }
+
+                replica.replayedLsn = record.value1();
+                replica.lagSeconds = record.value2() != null ? record.value2() : 0;
+
+                if (!replica.reachable)
+                {
+                    logger.info("Reading from {}", replica.name);
+                }
+                replica.reachable = true;
+            }
+            catch (RuntimeException e)
+            {
+                if (replica.reachable)
+                {
+                    logger.warn("Not reading from " + replica.name + " anymore", e);
+                }
+                replica.reachable = false;
+            }
+        }
+    }
+
+    private static void registerPoolMetrics(Meter meter, String name, HikariDataSource dataSource)
+    {
+        var attributes = Attributes.of(DATASOURCE_KEY, name);
+
+        meter.gaugeBuilder("patient_index.datasource.connections.active")
+            .setDescription("Connections in use")
+            .ofLongs()
+            .buildWithCallback(measurement -> {
+                var pool = dataSource.getHikariPoolMXBean();
+                if (pool != null)
+                {
+                    measurement.record(pool.getActiveConnections(), attributes);
+                }
+            });
+        meter.gaugeBuilder("patient_index.datasource.connections.idle")
+            .setDescription("Connections idling in the pool")
+            .ofLongs()
+            .buildWithCallback(measurement -> {
+                var pool = dataSource.getHikariPoolMXBean();
+                if (pool != null)
+                {
+                    measurement.record(pool.getIdleConnections(), attributes);
+                }
+            });
+        meter.gaugeBuilder("patient_index.datasource.connections.pending")
+            .setDescription("Threads waiting for a connection")
+            .ofLongs()
+            .buildWithCallback(measurement -> {
+                var pool = dataSource.getHikariPoolMXBean();
+                if (pool != null)
+                {
+                    measurement.record(pool.getThreadsAwaitingConnection(), attributes);
+                }
+            });
+    }
+
+    private static class Replica
+    {
+        private final String name;
+        private final HikariDataSource dataSource;
+        private final DSLContext dsl;
+
+        private volatile boolean reachable = false;
+        private volatile long replayedLsn = -1;
+        private volatile double lagSeconds = 0;
+
+        private Replica(String name, HikariDataSource dataSource, DSLContext dsl)
+        {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.dsl = dsl;
+        }
+    }
+}
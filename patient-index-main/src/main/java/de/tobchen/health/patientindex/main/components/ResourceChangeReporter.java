@@ -1,63 +1,319 @@
 package de.tobchen.health.patientindex.main.components;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageBuilder;
 import org.springframework.amqp.core.MessagePropertiesBuilder;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
-import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig.Publisher.Backpressure;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
 import de.tobchen.health.patientindex.main.events.ResourceChangeEvent;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
 
+/**
+ * Publishes resource changes to RabbitMQ from dedicated threads, so writes do not wait for the broker.
+ * Changes are encoded and queued (bounded), then sent in batches on a single channel each. Batches the broker
+ * does not take are retried with backoff, stopping waits until all queued changes are published.
+ */
 @Component
-public class ResourceChangeReporter
+public class ResourceChangeReporter implements SmartLifecycle
 {
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
     private final Logger logger = LoggerFactory.getLogger(ResourceChangeReporter.class);
 
     private final Optional<RabbitTemplate> template;
     private final TopicExchange topic;
 
-    private final FhirContext context;
+    private final ReusableJsonParser parser;
+
+    private final BlockingQueue<PendingChange> queue;
+    private final int batchSize;
+    private final int threadCount;
+    private final Backpressure backpressure;
+    private final long confirmTimeoutMillis;
+
+    private final LongCounter droppedCounter;
+    private final LongCounter retryCounter;
+    private final DoubleHistogram publishLatency;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = false;
 
-    public ResourceChangeReporter(Optional<RabbitTemplate> template, TopicExchange topic, FhirContext context)
+    public ResourceChangeReporter(Optional<RabbitTemplate> template, TopicExchange topic, ReusableJsonParser parser,
+        OpenTelemetry openTelemetry, PatientIndexConfig config)
     {
         this.template = template;
         this.topic = topic;
 
-        this.context = context;
+        this.parser = parser;
+
+        var publisherConfig = config.publisher();
+        this.queue = new ArrayBlockingQueue<>(publisherConfig.queueCapacity());
+        this.batchSize = publisherConfig.batchSize();
+        this.threadCount = publisherConfig.threads();
+        this.backpressure = publisherConfig.backpressure();
+        this.confirmTimeoutMillis = publisherConfig.confirmTimeout().toMillis();
+
+        var meter = openTelemetry.getMeter(ResourceChangeReporter.class.getName());
+        meter.gaugeBuilder("patient_index.resource_change.queue.size")
+            .setDescription("Resource changes waiting to be published")
+            .ofLongs()
+            .buildWithCallback(measurement -> measurement.record(queue.size()));
+        this.droppedCounter = meter.counterBuilder("patient_index.resource_change.dropped")
+            .setDescription("Resource changes dropped due to a full queue")
+            .build();
+        this.retryCounter = meter.counterBuilder("patient_index.resource_change.publish.retries")
+            .setDescription("Failed attempts to publish a batch of resource changes, which are retried")
+            .build();
+        this.publishLatency = meter.histogramBuilder("patient_index.resource_change.publish.duration")
+            .setDescription("Time from a resource change until it is published")
+            .setUnit("ms")
+            .build();
     }
 
     @EventListener
     public void resourceChanged(ResourceChangeEvent event)
     {
+        if (template.isEmpty())
+        {
+            return;
+        }
+
+        // Encoded right away, as the resource is also handed to the caller, which may still change it
         var resource = event.resource();
+        var change = new PendingChange(resource.getIdElement().getValue(), resource.getResourceType().toString(),
+            parser.encodeToBytes(resource), new Date(), System.nanoTime());
+
+        switch (backpressure)
+        {
+            case BLOCK:
+                try
+                {
+                    queue.put(change);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InternalErrorException("Interrupted while queueing change of " + change.id(), e);
+                }
+                break;
+            case DROP:
+                if (!queue.offer(change))
+                {
+                    droppedCounter.add(1);
+                    logger.warn("Dropping change of {} as queue is full: {}", change.id(), change.jsonString());
+                }
+                break;
+            case FAIL:
+                if (!queue.offer(change))
+                {
+                    droppedCounter.add(1);
+                    throw new InternalErrorException("Cannot publish change of " + change.id() + " as queue is full");
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        running = true;
+
+        template.ifPresent(t -> {
+            for (int i = 0; i < threadCount; ++i)
+            {
+                threads.add(Thread.ofPlatform()
+                    .name("resource-change-publisher-" + i)
+                    .start(() -> publishLoop(t)));
+            }
+        });
+    }
+
+    @Override
+    public void stop()
+    {
+        running = false;
+
+        for (var thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        threads.clear();
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    @Override
+    public int getPhase()
+    {
+        // Stop only after the web server has stopped taking requests, so queued changes are drained
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    private void publishLoop(RabbitTemplate template)
+    {
+        var batch = new ArrayList<PendingChange>(batchSize);
 
-        var json = context.newJsonParser().encodeResourceToString(resource);
-        logger.trace(json);
+        while (running || !queue.isEmpty())
+        {
+            try
+            {
+                var first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
 
-        var key = resource.getResourceType().toString();
-        logger.debug("Key: {}", key);
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+
+                publishWithRetry(template, batch);
+            }
+            catch (InterruptedException e)
+            {
+                logLost(batch, e);
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (RuntimeException e)
+            {
+                logLost(batch, e);
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Publishes the batch, retrying with backoff until the broker takes it (also while stopping).
+     */
+    private void publishWithRetry(RabbitTemplate template, List<PendingChange> batch) throws InterruptedException
+    {
+        // Built once, so retries send the same message ids
+        var messages = new ArrayList<Message>(batch.size());
+        for (var change : batch)
+        {
+            messages.add(toMessage(change));
+        }
+
+        var backoffMillis = INITIAL_BACKOFF_MILLIS;
+        while (true)
+        {
+            try
+            {
+                publish(template, batch, messages);
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                retryCounter.add(1);
+                logger.warn("Cannot publish batch of {} resource changes, retrying in {} ms", batch.size(),
+                    backoffMillis, e);
+
+                Thread.sleep(backoffMillis);
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void logLost(List<PendingChange> batch, Exception e)
+    {
+        for (var change : batch)
+        {
+            logger.error("Cannot publish change of {}: {}", change.id(), change.jsonString());
+        }
+        logger.error("Cannot publish batch", e);
+    }
+
+    private void publish(RabbitTemplate template, List<PendingChange> batch, List<Message> messages)
+    {
+        // All messages of a batch share one channel and, if enabled, one wait for publisher confirms
+        var waitForConfirms = template.getConnectionFactory().isSimplePublisherConfirms();
+        template.invoke(operations -> {
+            for (int i = 0; i < batch.size(); ++i)
+            {
+                operations.send(topic.getName(), batch.get(i).routingKey(), messages.get(i));
+            }
+
+            if (waitForConfirms)
+            {
+                operations.waitForConfirmsOrDie(confirmTimeoutMillis);
+            }
+
+            return null;
+        });
+
+        var now = System.nanoTime();
+        for (var change : batch)
+        {
+            publishLatency.record((now - change.enqueuedAt()) / 1e6);
+        }
+
+        logger.debug("Published {} resource changes", batch.size());
+    }
+
+    private Message toMessage(PendingChange change)
+    {
+        if (logger.isTraceEnabled())
+        {
+            logger.trace(change.jsonString());
+        }
 
         var messageProperties = MessagePropertiesBuilder
             .newInstance()
             .setContentType("application/fhir+json")
             .setMessageId(UUID.randomUUID().toString())
-            .setTimestamp(new Date())
+            .setTimestamp(change.changedAt())
             .build();
 
-        var message = MessageBuilder
-            .withBody(json.getBytes(StandardCharsets.UTF_8))
+        return MessageBuilder
+            .withBody(change.json())
             .andProperties(messageProperties)
             .build();
+    }
 
-        template.ifPresent(t -> t.send(topic.getName(), key, message));
+    private record PendingChange(String id, String routingKey, byte[] json, Date changedAt, long enqueuedAt)
+    {
+        String jsonString()
+        {
+            return new String(json, StandardCharsets.UTF_8);
+        }
     }
 }
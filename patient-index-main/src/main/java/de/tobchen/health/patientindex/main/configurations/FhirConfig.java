@@ -5,6 +5,9 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import ca.uhn.fhir.context.FhirContext;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
+import de.tobchen.health.patientindex.main.interceptors.ReadYourWritesInterceptor;
+import de.tobchen.health.patientindex.main.interceptors.StreamingSearchInterceptor;
 import de.tobchen.health.patientindex.main.providers.PatientProvider;
 import de.tobchen.health.patientindex.main.servlets.FhirServlet;
 
@@ -24,8 +27,16 @@ public class FhirConfig
     }
 
     @Bean
-    public ServletRegistrationBean<FhirServlet> fhirServlet(FhirContext context, PatientProvider patientProvider)
+    public ReusableJsonParser jsonParser(FhirContext context)
     {
-        return new ServletRegistrationBean<>(new FhirServlet(context, patientProvider), "/fhir/r5/*");
+        return new ReusableJsonParser(context);
+    }
+
+    @Bean
+    public ServletRegistrationBean<FhirServlet> fhirServlet(FhirContext context, PatientProvider patientProvider,
+        ReadYourWritesInterceptor readYourWritesInterceptor, StreamingSearchInterceptor streamingSearchInterceptor)
+    {
+        return new ServletRegistrationBean<>(new FhirServlet(context, patientProvider, readYourWritesInterceptor,
+            streamingSearchInterceptor), "/fhir/r5/*");
     }
 }
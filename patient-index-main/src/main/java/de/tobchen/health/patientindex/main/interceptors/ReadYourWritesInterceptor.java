@@ -0,0 +1,76 @@
+package de.tobchen.health.patientindex.main.interceptors;
+
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import de.tobchen.health.patientindex.main.components.DataSourceRouter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tracks read-your-writes per client: responses to writes carry a position, which the client sends with
+ * later reads that must see its writes. The position is opaque to clients.
+ */
+@Component
+@Interceptor
+public class ReadYourWritesInterceptor
+{
+    public static final String POSITION_HEADER = "X-Patient-Index-Position";
+
+    private final DataSourceRouter router;
+
+    public ReadYourWritesInterceptor(DataSourceRouter router)
+    {
+        this.router = router;
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+    public boolean readAfter(HttpServletRequest request)
+    {
+        long position = 0;
+
+        var header = request.getHeader(POSITION_HEADER);
+        if (header != null)
+        {
+            try
+            {
+                position = Long.parseLong(header.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // Unknown positions are ignored like missing ones
+            }
+        }
+
+        router.readAfter(position);
+
+        return true;
+    }
+
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean writtenPosition(RequestDetails requestDetails, HttpServletResponse response)
+    {
+        var requestType = requestDetails.getRequestType();
+        if (requestType != RequestTypeEnum.GET && requestType != RequestTypeEnum.HEAD)
+        {
+            // At or after this request's write, as it was committed before responding
+            var position = router.writtenPosition();
+            if (position > 0)
+            {
+                response.setHeader(POSITION_HEADER, Long.toString(position));
+            }
+        }
+
+        return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void completed(RequestDetails requestDetails)
+    {
+        router.clearReadAfter();
+    }
+}
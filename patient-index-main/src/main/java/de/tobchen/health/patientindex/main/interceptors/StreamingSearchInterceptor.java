@@ -0,0 +1,260 @@
+package de.tobchen.health.patientindex.main.interceptors;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.UUID;
+
+import org.hl7.fhir.r5.model.InstantType;
+import org.hl7.fhir.r5.model.Patient;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
+import de.tobchen.health.patientindex.main.services.PatientService;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Tracer;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Answers plain identifier searches by writing the Bundle straight to the response while patients are read
+ * from a cursor, instead of having HAPI encode the complete Bundle in memory first. Searches with any other
+ * parameter (or asking for XML or pretty printing) are left to {@code PatientProvider}.
+ */
+@Component
+@Interceptor
+public class StreamingSearchInterceptor
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private static final Set<String> STREAMABLE_PARAMETERS = Set.of(Patient.SP_IDENTIFIER, Constants.PARAM_FORMAT);
+
+    private final Tracer tracer;
+
+    private final FhirContext context;
+    private final ReusableJsonParser parser;
+
+    private final PatientService service;
+
+    public StreamingSearchInterceptor(OpenTelemetry openTelemetry, FhirContext context, ReusableJsonParser parser,
+        PatientService service)
+    {
+        this.tracer = openTelemetry.getTracer(StreamingSearchInterceptor.class.getName());
+
+        this.context = context;
+        this.parser = parser;
+
+        this.service = service;
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean searchByIdentifier(RequestDetails requestDetails, HttpServletResponse response)
+    {
+        var identifier = streamableIdentifier(requestDetails);
+        if (identifier == null)
+        {
+            return true;
+        }
+
+        var span = tracer.spanBuilder("StreamingSearchInterceptor.searchByIdentifier").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            var token = new TokenParam();
+            token.setValueAsQueryToken(context, Patient.SP_IDENTIFIER, null, identifier);
+
+            var ids = new ArrayList<String>();
+            var bundle = new StreamingBundle(requestDetails, response);
+
+            service.streamByIdentifier(token.getSystem(), token.getValue(), patients -> {
+                for (var patient : patients)
+                {
+                    ids.add(patient.getIdPart());
+                    bundle.writeEntry(patient);
+                }
+
+                // Sends each chunk right away instead of waiting for the container's buffer to fill
+                bundle.flush();
+            });
+
+            bundle.finish();
+
+            span.setAttribute("audit.action", "search");
+            span.setAttribute(AttributeKey.stringArrayKey("audit.patient"), ids);
+
+            // The response is complete, HAPI must not handle the request any further
+            return false;
+        }
+        catch (Throwable t)
+        {
+            span.recordException(t);
+            throw t;
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
+    private static @Nullable String streamableIdentifier(RequestDetails requestDetails)
+    {
+        if (requestDetails.getRequestType() != RequestTypeEnum.GET
+            || !"Patient".equals(requestDetails.getResourceName())
+            || requestDetails.getId() != null
+            || requestDetails.getOperation() != null
+            || requestDetails.getCompartmentName() != null)
+        {
+            return null;
+        }
+
+        var parameters = requestDetails.getParameters();
+        if (!STREAMABLE_PARAMETERS.containsAll(parameters.keySet()))
+        {
+            return null;
+        }
+
+        var identifiers = parameters.get(Patient.SP_IDENTIFIER);
+        if (identifiers == null || identifiers.length != 1 || identifiers[0].contains(","))
+        {
+            return null;
+        }
+
+        var encoding = RestfulServerUtils.determineResponseEncodingWithDefault(requestDetails);
+        if (encoding.getEncoding() != EncodingEnum.JSON
+            || RestfulServerUtils.prettyPrintResponse(requestDetails.getServer(), requestDetails))
+        {
+            return null;
+        }
+
+        return identifiers[0];
+    }
+
+    /**
+     * Writes a searchset Bundle entry by entry. Its start is only written with the first entry (or at the end),
+     * so failures before then still get a regular error response.
+     */
+    private class StreamingBundle
+    {
+        private final RequestDetails requestDetails;
+        private final HttpServletResponse response;
+
+        @Nullable
+        private JsonGenerator generator = null;
+        private int total = 0;
+
+        private StreamingBundle(RequestDetails requestDetails, HttpServletResponse response)
+        {
+            this.requestDetails = requestDetails;
+            this.response = response;
+        }
+
+        private void writeEntry(Patient patient)
+        {
+            try
+            {
+                var json = start();
+
+                if (total == 0)
+                {
+                    json.writeArrayFieldStart("entry");
+                }
+
+                json.writeStartObject();
+                json.writeStringField("fullUrl",
+                    requestDetails.getFhirServerBase() + "/Patient/" + patient.getIdPart());
+                json.writeFieldName("resource");
+                json.writeRawValue(parser.encodeToString(patient));
+                json.writeObjectFieldStart("search");
+                json.writeStringField("mode", "match");
+                json.writeEndObject();
+                json.writeEndObject();
+
+                ++total;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void flush()
+        {
+            try
+            {
+                start().flush();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void finish()
+        {
+            try
+            {
+                var json = start();
+
+                if (total > 0)
+                {
+                    json.writeEndArray();
+                }
+
+                // Only known at the end, FHIR JSON does not depend on the order of properties
+                json.writeNumberField("total", total);
+                json.writeEndObject();
+                json.flush();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private JsonGenerator start() throws IOException
+        {
+            var json = generator;
+            if (json == null)
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX);
+
+                json = JSON_FACTORY.createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+                json.writeStartObject();
+                json.writeStringField("resourceType", "Bundle");
+                json.writeStringField("id", UUID.randomUUID().toString());
+                json.writeObjectFieldStart("meta");
+                json.writeStringField("lastUpdated", InstantType.now().getValueAsString());
+                json.writeEndObject();
+                json.writeStringField("type", "searchset");
+                json.writeArrayFieldStart("link");
+                json.writeStartObject();
+                json.writeStringField("relation", "self");
+                json.writeStringField("url", requestDetails.getCompleteUrl());
+                json.writeEndObject();
+                json.writeEndArray();
+
+                generator = json;
+            }
+
+            return json;
+        }
+    }
+}
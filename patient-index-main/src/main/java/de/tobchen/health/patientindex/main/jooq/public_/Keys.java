@@ -4,7 +4,13 @@
 package de.tobchen.health.patientindex.main.jooq.public_;
 
 
+import de.tobchen.health.patientindex.main.jooq.public_.tables.IdentifierSystem;
 import de.tobchen.health.patientindex.main.jooq.public_.tables.Patient;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.PatientHistory;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.PatientIdentifier;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.records.IdentifierSystemRecord;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.records.PatientHistoryRecord;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.records.PatientIdentifierRecord;
 import de.tobchen.health.patientindex.main.jooq.public_.tables.records.PatientRecord;
 
 import org.jooq.ForeignKey;
@@ -25,11 +31,18 @@ public class Keys {
     // UNIQUE and PRIMARY KEY definitions
     // -------------------------------------------------------------------------
 
+    public static final UniqueKey<IdentifierSystemRecord> IDENTIFIER_SYSTEM_PKEY = Internal.createUniqueKey(IdentifierSystem.IDENTIFIER_SYSTEM, DSL.name("identifier_system_pkey"), new TableField[] { IdentifierSystem.IDENTIFIER_SYSTEM.ID }, true);
+    public static final UniqueKey<IdentifierSystemRecord> IDENTIFIER_SYSTEM_SYSTEM_KEY = Internal.createUniqueKey(IdentifierSystem.IDENTIFIER_SYSTEM, DSL.name("identifier_system_system_key"), new TableField[] { IdentifierSystem.IDENTIFIER_SYSTEM.SYSTEM }, true);
     public static final UniqueKey<PatientRecord> PATIENT_PKEY = Internal.createUniqueKey(Patient.PATIENT, DSL.name("patient_pkey"), new TableField[] { Patient.PATIENT.ID }, true);
+    public static final UniqueKey<PatientHistoryRecord> PATIENT_HISTORY_PKEY = Internal.createUniqueKey(PatientHistory.PATIENT_HISTORY, DSL.name("patient_history_pkey"), new TableField[] { PatientHistory.PATIENT_HISTORY.ID, PatientHistory.PATIENT_HISTORY.VERSION_ID }, true);
+    public static final UniqueKey<PatientIdentifierRecord> PATIENT_IDENTIFIER_PKEY = Internal.createUniqueKey(PatientIdentifier.PATIENT_IDENTIFIER, DSL.name("patient_identifier_pkey"), new TableField[] { PatientIdentifier.PATIENT_IDENTIFIER.PATIENT_ID, PatientIdentifier.PATIENT_IDENTIFIER.ORD }, true);
 
     // -------------------------------------------------------------------------
     // FOREIGN KEY definitions
     // -------------------------------------------------------------------------
 
     public static final ForeignKey<PatientRecord, PatientRecord> PATIENT__PATIENT_MERGED_INTO_FKEY = Internal.createForeignKey(Patient.PATIENT, DSL.name("patient_merged_into_fkey"), new TableField[] { Patient.PATIENT.MERGED_INTO }, Keys.PATIENT_PKEY, new TableField[] { Patient.PATIENT.ID }, true);
+    public static final ForeignKey<PatientHistoryRecord, PatientRecord> PATIENT_HISTORY__PATIENT_HISTORY_ID_FKEY = Internal.createForeignKey(PatientHistory.PATIENT_HISTORY, DSL.name("patient_history_id_fkey"), new TableField[] { PatientHistory.PATIENT_HISTORY.ID }, Keys.PATIENT_PKEY, new TableField[] { Patient.PATIENT.ID }, true);
+    public static final ForeignKey<PatientIdentifierRecord, PatientRecord> PATIENT_IDENTIFIER__PATIENT_IDENTIFIER_PATIENT_ID_FKEY = Internal.createForeignKey(PatientIdentifier.PATIENT_IDENTIFIER, DSL.name("patient_identifier_patient_id_fkey"), new TableField[] { PatientIdentifier.PATIENT_IDENTIFIER.PATIENT_ID }, Keys.PATIENT_PKEY, new TableField[] { Patient.PATIENT.ID }, true);
+    public static final ForeignKey<PatientIdentifierRecord, IdentifierSystemRecord> PATIENT_IDENTIFIER__PATIENT_IDENTIFIER_SYSTEM_ID_FKEY = Internal.createForeignKey(PatientIdentifier.PATIENT_IDENTIFIER, DSL.name("patient_identifier_system_id_fkey"), new TableField[] { PatientIdentifier.PATIENT_IDENTIFIER.SYSTEM_ID }, Keys.IDENTIFIER_SYSTEM_PKEY, new TableField[] { IdentifierSystem.IDENTIFIER_SYSTEM.ID }, true);
 }
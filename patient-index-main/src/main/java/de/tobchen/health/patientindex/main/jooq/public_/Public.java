@@ -5,7 +5,10 @@ package de.tobchen.health.patientindex.main.jooq.public_;
 
 
 import de.tobchen.health.patientindex.main.jooq.DefaultCatalog;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.IdentifierSystem;
 import de.tobchen.health.patientindex.main.jooq.public_.tables.Patient;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.PatientHistory;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.PatientIdentifier;
 
 import java.util.Arrays;
 import java.util.List;
@@ -28,11 +31,26 @@ public class Public extends SchemaImpl {
      */
     public static final Public PUBLIC = new Public();
 
+    /**
+     * The table <code>public.identifier_system</code>.
+     */
+    public final IdentifierSystem IDENTIFIER_SYSTEM = IdentifierSystem.IDENTIFIER_SYSTEM;
+
     /**
      * The table <code>public.patient</code>.
      */
     public final Patient PATIENT = Patient.PATIENT;
 
+    /**
+     * The table <code>public.patient_history</code>.
+     */
+    public final PatientHistory PATIENT_HISTORY = PatientHistory.PATIENT_HISTORY;
+
+    /**
+     * The table <code>public.patient_identifier</code>.
+     */
+    public final PatientIdentifier PATIENT_IDENTIFIER = PatientIdentifier.PATIENT_IDENTIFIER;
+
     /**
      * No further instances allowed
      */
@@ -49,7 +67,10 @@ public class Public extends SchemaImpl {
     @Override
     public final List<Table<?>> getTables() {
         return Arrays.asList(
-            Patient.PATIENT
+            IdentifierSystem.IDENTIFIER_SYSTEM,
+            Patient.PATIENT,
+            PatientHistory.PATIENT_HISTORY,
+            PatientIdentifier.PATIENT_IDENTIFIER
         );
     }
 }
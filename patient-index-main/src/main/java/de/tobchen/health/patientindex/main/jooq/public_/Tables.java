@@ -4,7 +4,10 @@
 package de.tobchen.health.patientindex.main.jooq.public_;
 
 
+import de.tobchen.health.patientindex.main.jooq.public_.tables.IdentifierSystem;
 import de.tobchen.health.patientindex.main.jooq.public_.tables.Patient;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.PatientHistory;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.PatientIdentifier;
 
 
 /**
@@ -13,8 +16,23 @@ import de.tobchen.health.patientindex.main.jooq.public_.tables.Patient;
 @SuppressWarnings({ "all", "unchecked", "rawtypes", "this-escape" })
 public class Tables {
 
+    /**
+     * The table <code>public.identifier_system</code>.
+     */
+    public static final IdentifierSystem IDENTIFIER_SYSTEM = IdentifierSystem.IDENTIFIER_SYSTEM;
+
     /**
      * The table <code>public.patient</code>.
      */
     public static final Patient PATIENT = Patient.PATIENT;
+
+    /**
+     * The table <code>public.patient_history</code>.
+     */
+    public static final PatientHistory PATIENT_HISTORY = PatientHistory.PATIENT_HISTORY;
+
+    /**
+     * The table <code>public.patient_identifier</code>.
+     */
+    public static final PatientIdentifier PATIENT_IDENTIFIER = PatientIdentifier.PATIENT_IDENTIFIER;
 }
@@ -4,6 +4,7 @@
 package de.tobchen.health.patientindex.main.jooq.public_.tables;
 
 
+import de.tobchen.health.patientindex.main.jooq.public_.Indexes;
 import de.tobchen.health.patientindex.main.jooq.public_.Keys;
 import de.tobchen.health.patientindex.main.jooq.public_.Public;
 import de.tobchen.health.patientindex.main.jooq.public_.tables.records.PatientRecord;
@@ -15,12 +16,12 @@ import java.util.function.Function;
 
 import org.jooq.Field;
 import org.jooq.ForeignKey;
-import org.jooq.Function4;
-import org.jooq.JSONB;
+import org.jooq.Function5;
+import org.jooq.Index;
 import org.jooq.Name;
 import org.jooq.Record;
 import org.jooq.Records;
-import org.jooq.Row4;
+import org.jooq.Row5;
 import org.jooq.Schema;
 import org.jooq.SelectField;
 import org.jooq.Table;
@@ -64,14 +65,19 @@ public class Patient extends TableImpl<PatientRecord> {
     public final TableField<PatientRecord, OffsetDateTime> LAST_UPDATED = createField(DSL.name("last_updated"), SQLDataType.TIMESTAMPWITHTIMEZONE(6).nullable(false), this, "");
 
     /**
-     * The column <code>public.patient.identifiers</code>.
+     * The column <code>public.patient.merged_into</code>.
      */
-    public final TableField<PatientRecord, JSONB> IDENTIFIERS = createField(DSL.name("identifiers"), SQLDataType.JSONB.nullable(false), this, "");
+    public final TableField<PatientRecord, String> MERGED_INTO = createField(DSL.name("merged_into"), SQLDataType.VARCHAR(64), this, "");
 
     /**
-     * The column <code>public.patient.merged_into</code>.
+     * The column <code>public.patient.version_id</code>.
      */
-    public final TableField<PatientRecord, String> MERGED_INTO = createField(DSL.name("merged_into"), SQLDataType.VARCHAR(64), this, "");
+    public final TableField<PatientRecord, Long> VERSION_ID = createField(DSL.name("version_id"), SQLDataType.BIGINT.nullable(false), this, "");
+
+    /**
+     * The column <code>public.patient.identifiers_hash</code>.
+     */
+    public final TableField<PatientRecord, byte[]> IDENTIFIERS_HASH = createField(DSL.name("identifiers_hash"), SQLDataType.BLOB, this, "");
 
     private Patient(Name alias, Table<PatientRecord> aliased) {
         this(alias, aliased, null);
@@ -111,6 +117,11 @@ public class Patient extends TableImpl<PatientRecord> {
         return aliased() ? null : Public.PUBLIC;
     }
 
+    @Override
+    public List<Index> getIndexes() {
+        return Arrays.asList(Indexes.PATIENT_LAST_UPDATED_IDX);
+    }
+
     @Override
     public UniqueKey<PatientRecord> getPrimaryKey() {
         return Keys.PATIENT_PKEY;
@@ -173,18 +184,18 @@ public class Patient extends TableImpl<PatientRecord> {
     }
 
     // -------------------------------------------------------------------------
-    // Row4 type methods
+    // Row5 type methods
     // -------------------------------------------------------------------------
 
     @Override
-    public Row4<String, OffsetDateTime, JSONB, String> fieldsRow() {
-        return (Row4) super.fieldsRow();
+    public Row5<String, OffsetDateTime, String, Long, byte[]> fieldsRow() {
+        return (Row5) super.fieldsRow();
     }
 
     /**
      * Convenience mapping calling {@link SelectField#convertFrom(Function)}.
      */
-    public <U> SelectField<U> mapping(Function4<? super String, ? super OffsetDateTime, ? super JSONB, ? super String, ? extends U> from) {
+    public <U> SelectField<U> mapping(Function5<? super String, ? super OffsetDateTime, ? super String, ? super Long, ? super byte[], ? extends U> from) {
         return convertFrom(Records.mapping(from));
     }
 
@@ -192,7 +203,7 @@ public class Patient extends TableImpl<PatientRecord> {
      * Convenience mapping calling {@link SelectField#convertFrom(Class,
      * Function)}.
      */
-    public <U> SelectField<U> mapping(Class<U> toType, Function4<? super String, ? super OffsetDateTime, ? super JSONB, ? super String, ? extends U> from) {
+    public <U> SelectField<U> mapping(Class<U> toType, Function5<? super String, ? super OffsetDateTime, ? super String, ? super Long, ? super byte[], ? extends U> from) {
         return convertFrom(toType, Records.mapping(from));
     }
 }
@@ -9,10 +9,9 @@ import de.tobchen.health.patientindex.main.jooq.public_.tables.Patient;
 import java.time.OffsetDateTime;
 
 import org.jooq.Field;
-import org.jooq.JSONB;
 import org.jooq.Record1;
-import org.jooq.Record4;
-import org.jooq.Row4;
+import org.jooq.Record5;
+import org.jooq.Row5;
 import org.jooq.impl.UpdatableRecordImpl;
 
 
@@ -20,7 +19,7 @@ import org.jooq.impl.UpdatableRecordImpl;
  * This class is generated by jOOQ.
  */
 @SuppressWarnings({ "all", "unchecked", "rawtypes", "this-escape" })
-public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements Record4<String, OffsetDateTime, JSONB, String> {
+public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements Record5<String, OffsetDateTime, String, Long, byte[]> {
 
     private static final long serialVersionUID = 1L;
 
@@ -53,31 +52,45 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     }
 
     /**
-     * Setter for <code>public.patient.identifiers</code>.
+     * Setter for <code>public.patient.merged_into</code>.
      */
-    public void setIdentifiers(JSONB value) {
+    public void setMergedInto(String value) {
         set(2, value);
     }
 
     /**
-     * Getter for <code>public.patient.identifiers</code>.
+     * Getter for <code>public.patient.merged_into</code>.
      */
-    public JSONB getIdentifiers() {
-        return (JSONB) get(2);
+    public String getMergedInto() {
+        return (String) get(2);
     }
 
     /**
-     * Setter for <code>public.patient.merged_into</code>.
+     * Setter for <code>public.patient.version_id</code>.
      */
-    public void setMergedInto(String value) {
+    public void setVersionId(Long value) {
         set(3, value);
     }
 
     /**
-     * Getter for <code>public.patient.merged_into</code>.
+     * Getter for <code>public.patient.version_id</code>.
      */
-    public String getMergedInto() {
-        return (String) get(3);
+    public Long getVersionId() {
+        return (Long) get(3);
+    }
+
+    /**
+     * Setter for <code>public.patient.identifiers_hash</code>.
+     */
+    public void setIdentifiersHash(byte[] value) {
+        set(4, value);
+    }
+
+    /**
+     * Getter for <code>public.patient.identifiers_hash</code>.
+     */
+    public byte[] getIdentifiersHash() {
+        return (byte[]) get(4);
     }
 
     // -------------------------------------------------------------------------
@@ -90,17 +103,17 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     }
 
     // -------------------------------------------------------------------------
-    // Record4 type implementation
+    // Record5 type implementation
     // -------------------------------------------------------------------------
 
     @Override
-    public Row4<String, OffsetDateTime, JSONB, String> fieldsRow() {
-        return (Row4) super.fieldsRow();
+    public Row5<String, OffsetDateTime, String, Long, byte[]> fieldsRow() {
+        return (Row5) super.fieldsRow();
     }
 
     @Override
-    public Row4<String, OffsetDateTime, JSONB, String> valuesRow() {
-        return (Row4) super.valuesRow();
+    public Row5<String, OffsetDateTime, String, Long, byte[]> valuesRow() {
+        return (Row5) super.valuesRow();
     }
 
     @Override
@@ -114,13 +127,18 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     }
 
     @Override
-    public Field<JSONB> field3() {
-        return Patient.PATIENT.IDENTIFIERS;
+    public Field<String> field3() {
+        return Patient.PATIENT.MERGED_INTO;
     }
 
     @Override
-    public Field<String> field4() {
-        return Patient.PATIENT.MERGED_INTO;
+    public Field<Long> field4() {
+        return Patient.PATIENT.VERSION_ID;
+    }
+
+    @Override
+    public Field<byte[]> field5() {
+        return Patient.PATIENT.IDENTIFIERS_HASH;
     }
 
     @Override
@@ -134,13 +152,18 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     }
 
     @Override
-    public JSONB component3() {
-        return getIdentifiers();
+    public String component3() {
+        return getMergedInto();
     }
 
     @Override
-    public String component4() {
-        return getMergedInto();
+    public Long component4() {
+        return getVersionId();
+    }
+
+    @Override
+    public byte[] component5() {
+        return getIdentifiersHash();
     }
 
     @Override
@@ -154,13 +177,18 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     }
 
     @Override
-    public JSONB value3() {
-        return getIdentifiers();
+    public String value3() {
+        return getMergedInto();
     }
 
     @Override
-    public String value4() {
-        return getMergedInto();
+    public Long value4() {
+        return getVersionId();
+    }
+
+    @Override
+    public byte[] value5() {
+        return getIdentifiersHash();
     }
 
     @Override
@@ -176,23 +204,30 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     }
 
     @Override
-    public PatientRecord value3(JSONB value) {
-        setIdentifiers(value);
+    public PatientRecord value3(String value) {
+        setMergedInto(value);
         return this;
     }
 
     @Override
-    public PatientRecord value4(String value) {
-        setMergedInto(value);
+    public PatientRecord value4(Long value) {
+        setVersionId(value);
+        return this;
+    }
+
+    @Override
+    public PatientRecord value5(byte[] value) {
+        setIdentifiersHash(value);
         return this;
     }
 
     @Override
-    public PatientRecord values(String value1, OffsetDateTime value2, JSONB value3, String value4) {
+    public PatientRecord values(String value1, OffsetDateTime value2, String value3, Long value4, byte[] value5) {
         value1(value1);
         value2(value2);
         value3(value3);
         value4(value4);
+        value5(value5);
         return this;
     }
 
@@ -210,13 +245,14 @@ public class PatientRecord extends UpdatableRecordImpl<PatientRecord> implements
     /**
      * Create a detached, initialised PatientRecord
      */
-    public PatientRecord(String id, OffsetDateTime lastUpdated, JSONB identifiers, String mergedInto) {
+    public PatientRecord(String id, OffsetDateTime lastUpdated, String mergedInto, Long versionId, byte[] identifiersHash) {
         super(Patient.PATIENT);
 
         setId(id);
         setLastUpdated(lastUpdated);
-        setIdentifiers(identifiers);
         setMergedInto(mergedInto);
+        setVersionId(versionId);
+        setIdentifiersHash(identifiersHash);
         resetChangedOnNotNull();
     }
 }
@@ -1,14 +1,26 @@
 package de.tobchen.health.patientindex.main.providers;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r5.model.IdType;
+import org.hl7.fhir.r5.model.InstantType;
+import org.hl7.fhir.r5.model.IntegerType;
 import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.Parameters;
 import org.hl7.fhir.r5.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r5.model.Patient;
 import org.hl7.fhir.r5.model.Reference;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.UriType;
 import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
@@ -18,6 +30,7 @@ import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import ca.uhn.fhir.rest.annotation.ConditionalUrlParam;
 import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
@@ -27,28 +40,42 @@ import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
 import de.tobchen.health.patientindex.main.services.PatientService;
+import de.tobchen.health.patientindex.main.services.PatientService.MergeRequest;
+import de.tobchen.health.patientindex.main.services.PatientService.SnapshotPage;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.trace.Tracer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 @Service
 public class PatientProvider implements IResourceProvider
 {
+    public static final String SNAPSHOT_AFTER_HEADER = "X-Patient-Index-Snapshot-After";
+
     private final Logger logger = LoggerFactory.getLogger(PatientProvider.class);
 
     private final Tracer tracer;
 
     private final PatientService service;
 
-    public PatientProvider(OpenTelemetry openTelemetry, PatientService service)
+    private final ReusableJsonParser parser;
+
+    public PatientProvider(OpenTelemetry openTelemetry, PatientService service, ReusableJsonParser parser)
     {
         this.tracer = openTelemetry.getTracer(PatientProvider.class.getName());
         this.service = service;
+        this.parser = parser;
     }
 
     @Override
@@ -58,15 +85,25 @@ public class PatientProvider implements IResourceProvider
     }
 
     @Create
-    public MethodOutcome create(@ResourceParam Patient patient) throws JsonProcessingException
+    public MethodOutcome create(@ResourceParam Patient patient, @Nullable @ConditionalUrlParam String conditionalUrl)
+        throws JsonProcessingException
     {
         var span = tracer.spanBuilder("PatientProvider.create").startSpan();
 
         try (var scope = span.makeCurrent())
         {
-            var outcome = service.createOrUpdate(patient);
+            MethodOutcome outcome;
+            if (conditionalUrl != null)
+            {
+                var identifier = conditionalIdentifierOf(conditionalUrl);
+                outcome = service.createIfNoneExist(patient, identifier.getSystem(), identifier.getValue());
+            }
+            else
+            {
+                outcome = service.createOrUpdate(patient);
+            }
 
-            span.setAttribute("audit.action", "create");
+            span.setAttribute("audit.action", outcome.getCreated().booleanValue() ? "create" : "read");
             span.setAttribute("audit.patient", outcome.getId().getIdPart());
 
             logger.debug("Patient created!");
@@ -85,20 +122,41 @@ public class PatientProvider implements IResourceProvider
     }
 
     @Update
-    public MethodOutcome update(@Nullable @IdParam IIdType idType, @ResourceParam Patient patient)
-        throws JsonProcessingException
+    public MethodOutcome update(@Nullable @IdParam IIdType idType, @ResourceParam Patient patient,
+        @Nullable @ConditionalUrlParam String conditionalUrl) throws JsonProcessingException
     {
         var span = tracer.spanBuilder("PatientProvider.update").startSpan();
 
         try (var scope = span.makeCurrent())
         {
-            var idPart = idType.getIdPart();
-            if (idPart == null)
+            MethodOutcome outcome;
+            if (conditionalUrl != null)
             {
-                throw new InvalidRequestException("Id is missing id part");
+                var identifier = conditionalIdentifierOf(conditionalUrl);
+                outcome = service.updateByIdentifier(patient, identifier.getSystem(), identifier.getValue());
+            }
+            else
+            {
+                var idPart = idType != null ? idType.getIdPart() : null;
+                if (idPart == null)
+                {
+                    throw new InvalidRequestException("Id is missing id part");
+                }
+
+                // HAPI puts the version of an If-Match header into the id
+                Long expectedVersionId = null;
+                if (idType.hasVersionIdPart())
+                {
+                    if (!idType.isVersionIdPartValidLong())
+                    {
+                        throw new InvalidRequestException("Version must be numeric");
+                    }
+
+                    expectedVersionId = idType.getVersionIdPartAsLong();
+                }
+
+                outcome = service.createOrUpdate(patient, expectedVersionId);
             }
-
-            var outcome = service.createOrUpdate(patient);
 
             span.setAttribute("audit.action", outcome.getCreated().booleanValue() ? "create" : "update");
             span.setAttribute("audit.patient", outcome.getId().getIdPart());
@@ -118,13 +176,21 @@ public class PatientProvider implements IResourceProvider
         }
     }
 
-    @Read
-    public @Nullable Patient read(@IdParam IIdType id) throws JsonProcessingException
+    @Read(version = true)
+    public @Nullable Patient read(@IdParam IIdType id, HttpServletRequest request) throws JsonProcessingException
     {
         var span = tracer.spanBuilder("PatientProvider.read").startSpan();
 
         try (var scope = span.makeCurrent())
         {
+            if (!id.hasVersionIdPart() && isNotModified(id, request))
+            {
+                span.setAttribute("audit.action", "read");
+                span.setAttribute("audit.patient", id.getIdPart());
+
+                throw new NotModifiedException("Not Modified");
+            }
+
             Patient patient = service.get(id);
 
             if (patient != null)
@@ -135,6 +201,10 @@ public class PatientProvider implements IResourceProvider
 
             return patient;
         }
+        catch (NotModifiedException e)
+        {
+            throw e;
+        }
         catch (Throwable t)
         {
             span.recordException(t);
@@ -146,6 +216,68 @@ public class PatientProvider implements IResourceProvider
         }
     }
 
+    /**
+     * Answers If-None-Match and If-Modified-Since from the patient's version alone, without reading the resource.
+     */
+    private boolean isNotModified(IIdType id, HttpServletRequest request)
+    {
+        var ifNoneMatch = request.getHeader(Constants.HEADER_IF_NONE_MATCH);
+
+        long ifModifiedSince;
+        try
+        {
+            ifModifiedSince = request.getDateHeader(Constants.HEADER_IF_MODIFIED_SINCE);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Unparsable dates are to be ignored
+            ifModifiedSince = -1;
+        }
+
+        if (ifNoneMatch == null && ifModifiedSince < 0)
+        {
+            return false;
+        }
+
+        var tag = service.getVersionTag(id);
+        if (tag == null)
+        {
+            return false;
+        }
+
+        // If-Modified-Since only applies without If-None-Match
+        if (ifNoneMatch != null)
+        {
+            for (var entityTag : ifNoneMatch.split(","))
+            {
+                entityTag = entityTag.trim();
+                if (entityTag.equals("*"))
+                {
+                    return true;
+                }
+
+                if (entityTag.startsWith("W/"))
+                {
+                    entityTag = entityTag.substring(2);
+                }
+                if (entityTag.length() >= 2 && entityTag.startsWith("\"") && entityTag.endsWith("\""))
+                {
+                    entityTag = entityTag.substring(1, entityTag.length() - 1);
+                }
+
+                if (entityTag.equals(Long.toString(tag.versionId())))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // HTTP dates have a resolution of seconds
+        return tag.lastUpdated().getTime() / 1000 <= ifModifiedSince / 1000;
+    }
+
     @Search
     public List<Patient> searchByIdentifier(
         @RequiredParam(name = Patient.SP_IDENTIFIER) TokenParam resourceIdentifier)
@@ -179,6 +311,202 @@ public class PatientProvider implements IResourceProvider
         }
     }
 
+    @Search
+    public List<Patient> searchById(@RequiredParam(name = IAnyResource.SP_RES_ID) TokenOrListParam resourceIds)
+    {
+        var span = tracer.spanBuilder("PatientProvider.searchById").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            var requestedIds = new ArrayList<String>();
+            for (var resourceId : resourceIds.getValuesAsQueryTokens())
+            {
+                var value = resourceId.getValue();
+                if (value != null && !value.isEmpty())
+                {
+                    requestedIds.add(new IdType(value).getIdPart());
+                }
+            }
+
+            var patients = requestedIds.isEmpty() ? List.<Patient>of() : service.getAll(requestedIds);
+
+            var ids = new ArrayList<String>();
+            for (var patient : patients)
+            {
+                ids.add(patient.getIdPart());
+            }
+
+            span.setAttribute("audit.action", "search");
+            span.setAttribute(AttributeKey.stringArrayKey("audit.patient"), ids);
+
+            return patients;
+        }
+        catch (Throwable t)
+        {
+            span.recordException(t);
+            throw t;
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
+    /**
+     * Writes all patients, merged ones included, as NDJSON while they are read, e.g. to bootstrap read models.
+     * With since given, only patients updated since then are written, e.g. to catch up read models. Patients are
+     * written in last update order. With count given, only a page of that many patients is written, read in one
+     * short transaction. The page's position is set as header, to be passed as after for the next page.
+     */
+    @Operation(name = "$snapshot", idempotent = true, manualResponse = true)
+    public void snapshot(@Nullable @OperationParam(name = "since", min = 0, max = 1) InstantType since,
+        @Nullable @OperationParam(name = "after", min = 0, max = 1) StringType after,
+        @Nullable @OperationParam(name = "count", min = 0, max = 1) IntegerType count,
+        HttpServletResponse response) throws IOException
+    {
+        var span = tracer.spanBuilder("PatientProvider.snapshot").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            var sinceDate = since != null ? since.getValue() : null;
+
+            if (count == null && after != null)
+            {
+                throw new InvalidRequestException("after needs count");
+            }
+
+            SnapshotPage page = null;
+            if (count != null)
+            {
+                if (count.getValue() == null || count.getValue() < 1)
+                {
+                    throw new InvalidRequestException("count must be positive");
+                }
+
+                page = service.fetchPage(sinceDate, after != null ? after.getValue() : null, count.getValue());
+            }
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(Constants.CT_FHIR_NDJSON + Constants.CHARSET_UTF8_CTSUFFIX);
+            if (page != null && page.next() != null)
+            {
+                response.setHeader(SNAPSHOT_AFTER_HEADER, page.next());
+            }
+
+            var output = response.getOutputStream();
+            var written = new AtomicLong();
+
+            Consumer<List<Patient>> writer = patients -> {
+                try
+                {
+                    for (var patient : patients)
+                    {
+                        output.write(parser.encodeToBytes(patient));
+                        output.write('\n');
+                    }
+                    output.flush();
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+
+                written.addAndGet(patients.size());
+            };
+
+            if (page != null)
+            {
+                writer.accept(page.patients());
+            }
+            else
+            {
+                service.streamAll(sinceDate, writer);
+            }
+
+            output.flush();
+
+            span.setAttribute("audit.action", "export");
+            span.setAttribute("patient_index.snapshot.size", written.get());
+        }
+        catch (Throwable t)
+        {
+            span.recordException(t);
+            throw t;
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
+    /**
+     * Answers PIXm queries (IHE ITI-83) with the identifiers and ids of the active patients having the source
+     * identifier, so clients need not search full patients.
+     */
+    @Operation(name = "$ihe-pix", idempotent = true)
+    public Parameters ihePix(@OperationParam(name = "sourceIdentifier", min = 1, max = 1) TokenParam sourceIdentifier,
+        @Nullable @OperationParam(name = "targetSystem", min = 0, max = OperationParam.MAX_UNLIMITED)
+        List<UriType> targetSystems)
+    {
+        var span = tracer.spanBuilder("PatientProvider.ihePix").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            var system = sourceIdentifier.getSystem();
+            var value = sourceIdentifier.getValue();
+            if (system == null || system.isEmpty() || value == null || value.isEmpty())
+            {
+                throw new InvalidRequestException("sourceIdentifier needs system and value");
+            }
+
+            var systems = new ArrayList<String>();
+            if (targetSystems != null)
+            {
+                for (var targetSystem : targetSystems)
+                {
+                    if (targetSystem.hasValue())
+                    {
+                        systems.add(targetSystem.getValue());
+                    }
+                }
+            }
+
+            var patients = service.crossReference(system, value, systems);
+            if (patients.isEmpty())
+            {
+                throw new ResourceNotFoundException("sourceIdentifier Patient Identifier not found");
+            }
+
+            var parameters = new Parameters();
+            var ids = new ArrayList<String>();
+            for (var patient : patients)
+            {
+                for (var identifier : patient.identifiers())
+                {
+                    parameters.addParameter().setName("targetIdentifier").setValue(identifier);
+                }
+                parameters.addParameter().setName("targetId")
+                    .setValue(new Reference(new IdType("Patient", patient.id())));
+
+                ids.add(patient.id());
+            }
+
+            span.setAttribute("audit.action", "search");
+            span.setAttribute(AttributeKey.stringArrayKey("audit.patient"), ids);
+
+            return parameters;
+        }
+        catch (Throwable t)
+        {
+            span.recordException(t);
+            throw t;
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
     @Operation(name = "$merge", idempotent = false)
     public Parameters merge(@OperationParam(name = "source-patient", min = 1, max = 1) Reference sourceReference,
         @OperationParam(name = "target-patient", min = 1, max = 1) Reference targetReference)
@@ -235,4 +563,117 @@ public class PatientProvider implements IResourceProvider
             span.end();
         }
     }
+
+    @Operation(name = "$merge-batch", idempotent = false)
+    public Parameters mergeBatch(
+        @OperationParam(name = "source-patient", min = 1, max = OperationParam.MAX_UNLIMITED)
+        List<Reference> sourceReferences,
+        @OperationParam(name = "target-patient", min = 1, max = OperationParam.MAX_UNLIMITED)
+        List<Reference> targetReferences)
+    {
+        var span = tracer.spanBuilder("PatientProvider.mergeBatch").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            if (sourceReferences.size() != targetReferences.size())
+            {
+                throw new InvalidRequestException("Needs as many sources as targets");
+            }
+
+            var requests = new ArrayList<MergeRequest>();
+            for (int i = 0; i < sourceReferences.size(); ++i)
+            {
+                requests.add(new MergeRequest(patientIdOf(sourceReferences.get(i)),
+                    patientIdOf(targetReferences.get(i))));
+            }
+
+            var mergeResults = service.mergeAll(requests);
+
+            var input = new Parameters();
+            for (int i = 0; i < sourceReferences.size(); ++i)
+            {
+                input.addParameter("source-patient", sourceReferences.get(i));
+                input.addParameter("target-patient", targetReferences.get(i));
+            }
+
+            var parameters = new Parameters()
+                .addParameter(new ParametersParameterComponent("input").setResource(input));
+
+            parameters.addParameter().setName("outcome").setResource(
+                new OperationOutcome(new OperationOutcomeIssueComponent(IssueSeverity.SUCCESS, IssueType.SUCCESS)));
+
+            var sourceIds = new ArrayList<String>();
+            var targetIds = new ArrayList<String>();
+            for (var mergeResult : mergeResults)
+            {
+                parameters.addParameter().setName("result").setResource(mergeResult.target());
+
+                sourceIds.add(mergeResult.source().getIdPart());
+                targetIds.add(mergeResult.target().getIdPart());
+            }
+
+            span.setAttribute("audit.action", "merge");
+            span.setAttribute(AttributeKey.stringArrayKey("audit.patient.source"), sourceIds);
+            span.setAttribute(AttributeKey.stringArrayKey("audit.patient.target"), targetIds);
+
+            return parameters;
+        }
+        catch (Throwable t)
+        {
+            span.recordException(t);
+            throw t;
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
+    private static IIdType patientIdOf(Reference reference)
+    {
+        var id = reference.getReferenceElement();
+
+        if (id == null || id.getIdPart() == null)
+        {
+            throw new InvalidRequestException("Needs source and target ids");
+        }
+        else if (id.hasBaseUrl())
+        {
+            throw new InvalidRequestException("Cannot handle absolute references");
+        }
+        else if (!"Patient".equals(id.getResourceType()))
+        {
+            throw new InvalidRequestException("Source and target must be Patient");
+        }
+
+        return id;
+    }
+
+    /**
+     * Reads the identifier of a conditional URL, e.g. "Patient?identifier=system|value" or "identifier=system|value".
+     */
+    private static TokenParam conditionalIdentifierOf(String conditionalUrl)
+    {
+        var query = conditionalUrl.substring(conditionalUrl.indexOf('?') + 1);
+
+        String identifier = null;
+        for (var parameter : query.split("&"))
+        {
+            var separator = parameter.indexOf('=');
+            if (separator < 0 || !"identifier".equals(parameter.substring(0, separator)) || identifier != null)
+            {
+                throw new InvalidRequestException("Conditional operations need a single identifier parameter");
+            }
+
+            identifier = URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+        }
+
+        var bar = identifier != null ? identifier.indexOf('|') : -1;
+        if (identifier == null || bar <= 0 || bar == identifier.length() - 1)
+        {
+            throw new InvalidRequestException("Conditional identifier must be given as system|value");
+        }
+
+        return new TokenParam(identifier.substring(0, bar), identifier.substring(bar + 1));
+    }
 }
@@ -0,0 +1,147 @@
+package de.tobchen.health.patientindex.main.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects items submitted concurrently within a short window and hands them to a batch function at once.
+ * The first submitter of a window waits for it to pass (or the batch to fill up) and runs the batch for all
+ * submitters, who each get their own result or exception.
+ */
+final class GroupCommitter<T, R>
+{
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Consumer<List<Request<T, R>>> batchFunction;
+
+    private final Object lock = new Object();
+    private List<Request<T, R>> pending = new ArrayList<>();
+    private boolean collecting = false;
+
+    GroupCommitter(Duration window, int maxBatchSize, Consumer<List<Request<T, R>>> batchFunction)
+    {
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.batchFunction = batchFunction;
+    }
+
+    R submit(T item)
+    {
+        var request = new Request<T, R>(item);
+
+        boolean leader;
+        synchronized (lock)
+        {
+            pending.add(request);
+
+            leader = !collecting;
+            collecting = true;
+
+            if (pending.size() >= maxBatchSize)
+            {
+                lock.notifyAll();
+            }
+        }
+
+        if (leader)
+        {
+            lead();
+        }
+
+        try
+        {
+            return request.future.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException cause)
+            {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void lead()
+    {
+        List<Request<T, R>> batch;
+
+        synchronized (lock)
+        {
+            var deadline = System.nanoTime() + windowNanos;
+            var remaining = windowNanos;
+            while (remaining > 0 && pending.size() < maxBatchSize)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+
+            batch = pending;
+            pending = new ArrayList<>();
+            collecting = false;
+        }
+
+        // Submitters arriving after the window has closed may have overfilled the batch
+        for (int from = 0; from < batch.size(); from += maxBatchSize)
+        {
+            var chunk = batch.subList(from, Math.min(from + maxBatchSize, batch.size()));
+
+            try
+            {
+                batchFunction.accept(chunk);
+            }
+            catch (RuntimeException e)
+            {
+                for (var request : chunk)
+                {
+                    request.fail(e);
+                }
+            }
+
+            for (var request : chunk)
+            {
+                request.fail(new IllegalStateException("Batch left request without outcome"));
+            }
+        }
+    }
+
+    static final class Request<T, R>
+    {
+        private final T item;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        private Request(T item)
+        {
+            this.item = item;
+        }
+
+        T item()
+        {
+            return item;
+        }
+
+        void complete(R result)
+        {
+            future.complete(result);
+        }
+
+        void fail(RuntimeException exception)
+        {
+            // Has no effect on requests already completed
+            future.completeExceptionally(exception);
+        }
+    }
+}
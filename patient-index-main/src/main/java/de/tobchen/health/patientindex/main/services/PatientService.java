@@ -1,52 +1,253 @@
 package de.tobchen.health.patientindex.main.services;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r5.model.IdType;
+import org.hl7.fhir.r5.model.Identifier;
 import org.hl7.fhir.r5.model.Meta;
 import org.hl7.fhir.r5.model.Patient;
 import org.hl7.fhir.r5.model.Patient.LinkType;
 import org.hl7.fhir.r5.model.Reference;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.JSONB;
+import org.jooq.Record1;
+import org.jooq.ResultQuery;
+import org.jooq.Row2;
+import org.jooq.Row3;
+import org.jooq.SelectConditionStep;
 import org.jooq.impl.DSL;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import static de.tobchen.health.patientindex.main.jooq.public_.Tables.*;
 
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.main.components.DataSourceRouter;
 import de.tobchen.health.patientindex.main.events.ResourceChangeEvent;
+import de.tobchen.health.patientindex.main.jooq.public_.tables.records.PatientHistoryRecord;
 import de.tobchen.health.patientindex.main.jooq.public_.tables.records.PatientRecord;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
 
 @Service
 public class PatientService
 {
+    private static final int STREAM_CHUNK_SIZE = 100;
+
+    private static final AttributeKey<String> OPERATION_KEY = AttributeKey.stringKey("operation");
+
     private final ApplicationEventPublisher publisher;
 
+    private final DataSourceRouter router;
     private final DSLContext dsl;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    public PatientService(ApplicationEventPublisher publisher, DSLContext dsl)
+    private final boolean compressMergePaths;
+
+    @Nullable
+    private final GroupCommitter<PendingWrite, CreateOrUpdateTransactionResult> groupCommitter;
+    private final LongHistogram groupCommitBatchSize;
+    private final LongCounter suppressedWriteCounter;
+
+    // Concurrent identical reads share one execution, unless a write was committed in between or they must
+    // read after different positions
+    private final AtomicLong writeGeneration = new AtomicLong();
+    private final SingleFlight<ReadKey, Optional<Patient>> coalescedReads;
+    private final SingleFlight<SearchKey, List<Patient>> coalescedSearches;
+
+    // Identifier systems are few and never change, so their dictionary ids are cached for good
+    private final Map<String, Integer> systemIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> systems = new ConcurrentHashMap<>();
+
+    public PatientService(ApplicationEventPublisher publisher, DataSourceRouter router, OpenTelemetry openTelemetry,
+        PatientIndexConfig config)
     {
         this.publisher = publisher;
 
-        this.dsl = dsl;
+        this.router = router;
+        this.dsl = router.writer();
+
+        this.compressMergePaths = config.merge().compressPaths();
+
+        var groupCommitConfig = config.groupCommit();
+        this.groupCommitter = groupCommitConfig.enabled()
+            ? new GroupCommitter<>(groupCommitConfig.window(), groupCommitConfig.maxBatchSize(), this::writeGroup)
+            : null;
+
+        var meter = openTelemetry.getMeter(PatientService.class.getName());
+        this.groupCommitBatchSize = meter.histogramBuilder("patient_index.group_commit.batch.size")
+            .setDescription("Writes committed together in one group")
+            .ofLongs()
+            .build();
+        this.suppressedWriteCounter = meter.counterBuilder("patient_index.write.suppressed")
+            .setDescription("Updates skipped as they would not change the patient")
+            .build();
+
+        var coalescedCounter = meter.counterBuilder("patient_index.read.coalesced")
+            .setDescription("Reads and searches that shared the execution of an identical concurrent one")
+            .build();
+        var readAttributes = Attributes.of(OPERATION_KEY, "read");
+        var searchAttributes = Attributes.of(OPERATION_KEY, "search");
+        // Callers may modify the resources they get, so each waiting caller gets its own copy
+        this.coalescedReads = new SingleFlight<>(patient -> patient.map(Patient::copy),
+            () -> coalescedCounter.add(1, readAttributes));
+        this.coalescedSearches = new SingleFlight<>(PatientService::copyAll,
+            () -> coalescedCounter.add(1, searchAttributes));
     }
 
     public MethodOutcome createOrUpdate(Patient patient)
         throws JsonProcessingException
+    {
+        return createOrUpdate(patient, null);
+    }
+
+    public MethodOutcome createOrUpdate(Patient patient, @Nullable Long expectedVersionId)
+        throws JsonProcessingException
+    {
+        var write = pendingWrite(patient, patient.getIdPart(), expectedVersionId);
+
+        var transactionResult = groupCommitter != null ? groupCommitter.submit(write) : write(write);
+        if (!transactionResult.changed())
+        {
+            suppressedWriteCounter.add(1);
+        }
+
+        return outcomeOf(transactionResult, write);
+    }
+
+    /**
+     * Creates the patient unless patients with the identifier exist, then returns their survivor.
+     * Fails if the identifier matches several surviving patients.
+     */
+    public MethodOutcome createIfNoneExist(Patient patient, String system, String value)
+    {
+        var write = pendingWrite(patient, null, null);
+
+        var transactionResult = conditionalWrite(write, system, value, false);
+
+        return outcomeOf(transactionResult, write);
+    }
+
+    /**
+     * Updates the surviving patient with the identifier, or creates a patient if none exists.
+     * Fails if the identifier matches several surviving patients.
+     */
+    public MethodOutcome updateByIdentifier(Patient patient, String system, String value)
+    {
+        var write = pendingWrite(patient, patient.getIdPart(), null);
+
+        var transactionResult = conditionalWrite(write, system, value, true);
+        if (!transactionResult.changed())
+        {
+            suppressedWriteCounter.add(1);
+        }
+
+        return outcomeOf(transactionResult, write);
+    }
+
+    private CreateOrUpdateTransactionResult conditionalWrite(PendingWrite write, String system, String value,
+        boolean update)
+    {
+        var systemId = systemIdOf(system);
+
+        var transactionResult = dsl.transactionResult(trx -> {
+            // Serializes conditional writes of the same identifier, a unique index is no option
+            // as merged patients keep their identifiers
+            trx.dsl().select(DSL.function("pg_advisory_xact_lock", Object.class,
+                    DSL.val(systemId), DSL.function("hashtext", Integer.class, DSL.val(value))))
+                .execute();
+
+            var matchingIds = trx.dsl().select(PATIENT_IDENTIFIER.PATIENT_ID)
+                .from(PATIENT_IDENTIFIER)
+                .where(PATIENT_IDENTIFIER.SYSTEM_ID.equal(systemId))
+                .and(PATIENT_IDENTIFIER.VALUE.equal(value))
+                .fetch(Record1::value1);
+
+            var survivorIds = new HashSet<String>();
+            if (!matchingIds.isEmpty())
+            {
+                survivorIds.addAll(resolveSurvivors(trx.dsl(), matchingIds).values());
+            }
+            if (survivorIds.size() > 1)
+            {
+                throw new PreconditionFailedException("Identifier matches " + survivorIds.size() + " patients");
+            }
+
+            if (survivorIds.isEmpty())
+            {
+                return writeInTransaction(trx.dsl(), write);
+            }
+
+            var survivorId = survivorIds.iterator().next();
+            if (write.id() != null && !write.id().equals(survivorId))
+            {
+                throw new InvalidRequestException("Identifier matches patient " + survivorId
+                    + " but resource has id " + write.id());
+            }
+
+            if (update)
+            {
+                return writeInTransaction(trx.dsl(), new PendingWrite(survivorId, null,
+                    write.identifiers(), write.systemIds(), write.identifiersHash()));
+            }
+            else
+            {
+                var survivorRecord = trx.dsl().selectFrom(PATIENT)
+                    .where(PATIENT.ID.equal(survivorId))
+                    .fetchSingle();
+
+                return new CreateOrUpdateTransactionResult(false, false, survivorRecord);
+            }
+        });
+
+        if (transactionResult.changed())
+        {
+            written();
+        }
+
+        return transactionResult;
+    }
+
+    private PendingWrite pendingWrite(Patient patient, @Nullable String id, @Nullable Long expectedVersionId)
     {
         var identifierList = new ArrayList<IdentifierRecord>();
 
@@ -67,128 +268,743 @@ public class PatientService
             }
         }
 
-        var identifierJson = objectMapper.writeValueAsString(identifierList);
+        if (identifierList.size() > Short.MAX_VALUE)
+        {
+            throw new InvalidRequestException("Too many identifiers");
+        }
 
-        var transactionResult = dsl.transactionResult(trx -> {
-            var resourceIdPart = patient.getIdPart();
+        // Resolved before the transaction, so only committed systems end up in the dictionary cache
+        var systemIdList = new ArrayList<Integer>(identifierList.size());
+        for (var identifier : identifierList)
+        {
+            systemIdList.add(systemIdOf(identifier.system()));
+        }
+
+        return new PendingWrite(id, expectedVersionId, identifierList, systemIdList,
+            identifiersHash(systemIdList, identifierList));
+    }
+
+    private MethodOutcome outcomeOf(CreateOrUpdateTransactionResult transactionResult, PendingWrite write)
+    {
+        Patient resource;
+        if (transactionResult.changed())
+        {
+            resource = resourceFromRecord(transactionResult.record(), write.identifiers(), null);
+
+            publisher.publishEvent(new ResourceChangeEvent(resource));
+        }
+        else
+        {
+            // The stored order of identifiers may differ from the request's
+            var id = transactionResult.record().getId();
+            resource = resourceFromRecord(transactionResult.record(), fetchIdentifiers(dsl, List.of(id)).get(id), null);
+        }
+
+        var outcome = new MethodOutcome(resource.getIdElement(), transactionResult.created());
+        outcome.setResource(resource);
+
+        return outcome;
+    }
+
+    private CreateOrUpdateTransactionResult write(PendingWrite write)
+    {
+        var transactionResult = dsl.transactionResult(trx -> writeInTransaction(trx.dsl(), write));
 
-            boolean created;
-            PatientRecord patientRecord;
+        if (transactionResult.changed())
+        {
+            written();
+        }
 
-            if (resourceIdPart == null)
+        return transactionResult;
+    }
+
+    private static CreateOrUpdateTransactionResult writeInTransaction(DSLContext dsl, PendingWrite write)
+    {
+        var resourceIdPart = write.id();
+
+        boolean created;
+        boolean changed = true;
+        PatientRecord patientRecord = null;
+
+        if (resourceIdPart == null)
+        {
+            do
             {
-                do
-                {
-                    resourceIdPart = UUID.randomUUID().toString();
-                }
-                while (trx.dsl().selectOne().from(PATIENT)
-                    .where(PATIENT.ID.equal(resourceIdPart)).fetchAny() != null);
-                
-                created = true;
+                resourceIdPart = UUID.randomUUID().toString();
+            }
+            while (dsl.selectOne().from(PATIENT)
+                .where(PATIENT.ID.equal(resourceIdPart)).fetchAny() != null);
+            
+            created = true;
+        }
+        else
+        {
+            // The version check is part of the update itself, so concurrent writers are
+            // detected without locking the row beforehand
+            var condition = PATIENT.ID.equal(resourceIdPart)
+                .and(PATIENT.MERGED_INTO.isNull())
+                .and(PATIENT.IDENTIFIERS_HASH.isDistinctFrom(write.identifiersHash()));
+            if (write.expectedVersionId() != null)
+            {
+                condition = condition.and(PATIENT.VERSION_ID.equal(write.expectedVersionId()));
+            }
+
+            var updateFetch = dsl.update(PATIENT)
+                .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                .set(PATIENT.VERSION_ID, PATIENT.VERSION_ID.plus(1L))
+                .set(PATIENT.IDENTIFIERS_HASH, write.identifiersHash())
+                .where(condition)
+                .returningResult(PATIENT)
+                .fetchAny();
+
+            if (updateFetch != null)
+            {
+                patientRecord = updateFetch.value1();
+                created = false;
             }
             else
             {
-                var mergedIntoRecord = trx.dsl()
-                    .select(PATIENT.MERGED_INTO)
-                    .from(PATIENT)
+                var currentRecord = dsl
+                    .selectFrom(PATIENT)
                     .where(PATIENT.ID.equal(resourceIdPart))
                     .fetchAny();
-                
-                if (mergedIntoRecord == null)
+
+                if (currentRecord == null)
                 {
+                    if (write.expectedVersionId() != null)
+                    {
+                        throw new PreconditionFailedException("Resource does not exist");
+                    }
+
                     created = true;
                 }
-                else if (mergedIntoRecord.value1() == null)
+                else if (currentRecord.getMergedInto() != null)
                 {
-                    created = false;
+                    throw new UnprocessableEntityException("Cannot update merged resource");
+                }
+                else if (write.expectedVersionId() != null
+                    && !write.expectedVersionId().equals(currentRecord.getVersionId()))
+                {
+                    throw new PreconditionFailedException("Expected version " + write.expectedVersionId()
+                        + " but current version is " + currentRecord.getVersionId());
                 }
                 else
                 {
-                    throw new UnprocessableEntityException("Cannot update merged resource");
+                    // Only an unchanged identifier set keeps an unmerged row of the expected version from updating
+                    patientRecord = currentRecord;
+                    created = false;
+                    changed = false;
                 }
             }
+        }
 
-            if (created)
+        if (created)
+        {
+            patientRecord = dsl.insertInto(PATIENT)
+                .set(PATIENT.ID, resourceIdPart)
+                .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                .set(PATIENT.VERSION_ID, 1L)
+                .set(PATIENT.IDENTIFIERS_HASH, write.identifiersHash())
+                .returningResult(PATIENT)
+                .fetchAny().value1();
+        }
+
+        if (changed)
+        {
+            writeIdentifiers(dsl, List.of(resourceIdPart), List.of(write));
+
+            insertHistory(dsl, List.of(resourceIdPart));
+        }
+
+        return new CreateOrUpdateTransactionResult(created, changed, patientRecord);
+    }
+
+    /**
+     * Writes a group of concurrently submitted writes in one transaction, using multi-row statements.
+     * Writes to the same patient go into consecutive transactions, keeping their order. If a transaction
+     * fails as a whole, each of its writes is retried on its own, so every caller gets its own outcome.
+     */
+    private void writeGroup(List<GroupCommitter.Request<PendingWrite, CreateOrUpdateTransactionResult>> requests)
+    {
+        groupCommitBatchSize.record(requests.size());
+
+        var rounds = new ArrayList<List<GroupCommitter.Request<PendingWrite, CreateOrUpdateTransactionResult>>>();
+        var roundOfId = new HashMap<String, Integer>();
+        for (var request : requests)
+        {
+            var round = 0;
+            var id = request.item().id();
+            if (id != null)
             {
-                patientRecord = trx.dsl().insertInto(PATIENT)
-                    .set(PATIENT.ID, resourceIdPart)
-                    .set(PATIENT.IDENTIFIERS, JSONB.jsonb(identifierJson))
-                    .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
-                    .returningResult(PATIENT)
-                    .fetchAny().value1();
+                var previousRound = roundOfId.get(id);
+                round = previousRound != null ? previousRound + 1 : 0;
+                roundOfId.put(id, round);
+            }
+
+            while (rounds.size() <= round)
+            {
+                rounds.add(new ArrayList<>());
+            }
+            rounds.get(round).add(request);
+        }
+
+        for (var round : rounds)
+        {
+            var writes = new ArrayList<PendingWrite>(round.size());
+            for (var request : round)
+            {
+                writes.add(request.item());
+            }
+
+            List<WriteOutcome> outcomes;
+            try
+            {
+                outcomes = dsl.transactionResult(trx -> writeAll(trx.dsl(), writes));
+                written();
+            }
+            catch (RuntimeException e)
+            {
+                for (var request : round)
+                {
+                    try
+                    {
+                        request.complete(write(request.item()));
+                    }
+                    catch (RuntimeException writeException)
+                    {
+                        request.fail(writeException);
+                    }
+                }
+                continue;
+            }
+
+            for (int i = 0; i < round.size(); ++i)
+            {
+                var outcome = outcomes.get(i);
+                if (outcome.result() != null)
+                {
+                    round.get(i).complete(outcome.result());
+                }
+                else if (outcome.error() != null)
+                {
+                    round.get(i).fail(outcome.error());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes patients that are all distinct. Rejected writes (merged, version mismatch) are reported
+     * in their outcome and do not affect the others.
+     */
+    private static List<WriteOutcome> writeAll(DSLContext dsl, List<PendingWrite> writes)
+    {
+        var ids = new ArrayList<String>(writes.size());
+        for (var write : writes)
+        {
+            ids.add(write.id() != null ? write.id() : UUID.randomUUID().toString());
+        }
+
+        // Locks the existing rows in a fixed order, so the checks below hold until commit
+        var currentRecords = dsl.selectFrom(PATIENT)
+            .where(PATIENT.ID.in(ids))
+            .orderBy(PATIENT.ID)
+            .forUpdate()
+            .fetchMap(PATIENT.ID);
+
+        var outcomes = new ArrayList<WriteOutcome>(writes.size());
+        var updateIds = new ArrayList<String>();
+        var updateHashes = new ArrayList<byte[]>();
+        var createIds = new ArrayList<String>();
+        var createHashes = new ArrayList<byte[]>();
+        var writtenIds = new ArrayList<String>();
+        var writtenWrites = new ArrayList<PendingWrite>();
+
+        for (int i = 0; i < writes.size(); ++i)
+        {
+            var write = writes.get(i);
+            var id = ids.get(i);
+            var current = currentRecords.get(id);
+
+            RuntimeException error = null;
+            if (current == null)
+            {
+                if (write.expectedVersionId() != null)
+                {
+                    error = new PreconditionFailedException("Resource does not exist");
+                }
+                else
+                {
+                    createIds.add(id);
+                    createHashes.add(write.identifiersHash());
+                }
+            }
+            else if (write.id() == null)
+            {
+                // Practically impossible, retrying on its own generates another id
+                throw new InternalErrorException("Generated id " + id + " exists");
+            }
+            else if (current.getMergedInto() != null)
+            {
+                error = new UnprocessableEntityException("Cannot update merged resource");
+            }
+            else if (write.expectedVersionId() != null && !write.expectedVersionId().equals(current.getVersionId()))
+            {
+                error = new PreconditionFailedException("Expected version " + write.expectedVersionId()
+                    + " but current version is " + current.getVersionId());
+            }
+            else if (Arrays.equals(current.getIdentifiersHash(), write.identifiersHash()))
+            {
+                outcomes.add(new WriteOutcome(new CreateOrUpdateTransactionResult(false, false, current), null));
+                continue;
             }
             else
             {
-                patientRecord = trx.dsl().update(PATIENT)
-                    .set(PATIENT.IDENTIFIERS, JSONB.jsonb(identifierJson))
-                    .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
-                    .where(PATIENT.ID.equal(resourceIdPart))
-                    .returningResult(PATIENT)
-                    .fetchAny().value1();
+                updateIds.add(id);
+                updateHashes.add(write.identifiersHash());
             }
 
-            return new CreateOrUpdateTransactionResult(created, patientRecord);
-        });
+            if (error == null)
+            {
+                writtenIds.add(id);
+                writtenWrites.add(write);
+            }
+
+            outcomes.add(new WriteOutcome(null, error));
+        }
+
+        var records = new HashMap<String, PatientRecord>();
+
+        if (!updateIds.isEmpty())
+        {
+            @SuppressWarnings("unchecked")
+            Row2<String, byte[]>[] rows = new Row2[updateIds.size()];
+            for (int i = 0; i < rows.length; ++i)
+            {
+                rows[i] = DSL.row(updateIds.get(i), updateHashes.get(i));
+            }
+
+            var hashes = DSL.values(rows).as("hashes", "id", "hash");
+            var hashId = hashes.field("id", String.class);
+            var hash = hashes.field("hash", byte[].class);
+
+            var updatedRecords = dsl.update(PATIENT)
+                .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                .set(PATIENT.VERSION_ID, PATIENT.VERSION_ID.plus(1L))
+                .set(PATIENT.IDENTIFIERS_HASH, hash)
+                .from(hashes)
+                .where(PATIENT.ID.equal(hashId))
+                .returningResult(PATIENT)
+                .fetch(Record1::value1);
+            for (var record : updatedRecords)
+            {
+                records.put(record.getId(), record);
+            }
+        }
+
+        if (!createIds.isEmpty())
+        {
+            var insert = dsl.insertInto(PATIENT,
+                PATIENT.ID, PATIENT.LAST_UPDATED, PATIENT.VERSION_ID, PATIENT.IDENTIFIERS_HASH);
+            for (int i = 0; i < createIds.size(); ++i)
+            {
+                insert = insert.values(DSL.val(createIds.get(i)), DSL.currentOffsetDateTime(), DSL.val(1L),
+                    DSL.val(createHashes.get(i)));
+            }
+
+            for (var record : insert.returningResult(PATIENT).fetch(Record1::value1))
+            {
+                records.put(record.getId(), record);
+            }
+        }
+
+        writeIdentifiers(dsl, writtenIds, writtenWrites);
+
+        insertHistory(dsl, writtenIds);
+
+        for (int i = 0; i < writes.size(); ++i)
+        {
+            var outcome = outcomes.get(i);
+            if (outcome.result() == null && outcome.error() == null)
+            {
+                var id = ids.get(i);
+                outcomes.set(i, new WriteOutcome(
+                    new CreateOrUpdateTransactionResult(!currentRecords.containsKey(id), true, records.get(id)),
+                    null));
+            }
+        }
+
+        return outcomes;
+    }
+
+    public @Nullable Patient get(IIdType id)
+    {
+        var key = new ReadKey(writeGeneration.get(), router.readAfterPosition(), id.getIdPart(),
+            id.getVersionIdPart());
+        return coalescedReads.execute(key, () -> Optional.ofNullable(load(id))).orElse(null);
+    }
+
+    private @Nullable Patient load(IIdType id)
+    {
+        if (id.hasVersionIdPart())
+        {
+            return getVersion(id);
+        }
+
+        Patient resource;
+
+        // One context for all queries, so they see the same replica
+        var reader = router.reader();
+
+        var record = reader.select(PATIENT)
+            .from(PATIENT)
+            .where(PATIENT.ID.equal(id.getIdPart()))
+            .fetchAny();
+        if (record != null)
+        {
+            var patientRecord = record.value1();
+
+            String survivorId = null;
+            if (patientRecord.getMergedInto() != null)
+            {
+                survivorId = resolveSurvivors(reader, List.of(patientRecord.getId())).get(patientRecord.getId());
+            }
+
+            var identifiers = fetchIdentifiers(reader, List.of(patientRecord.getId()));
+
+            resource = resourceFromRecord(patientRecord, identifiers.get(patientRecord.getId()), survivorId);
+        }
+        else
+        {
+            resource = null;
+        }
+
+        return resource;
+    }
+
+    /**
+     * Looks up a patient's current version without reading its identifiers, e.g. to answer conditional reads.
+     * Merged patients have none, as their resource also changes when their survivor is merged again.
+     */
+    public @Nullable VersionTag getVersionTag(IIdType id)
+    {
+        var record = router.reader().select(PATIENT.VERSION_ID, PATIENT.LAST_UPDATED)
+            .from(PATIENT)
+            .where(PATIENT.ID.equal(id.getIdPart()))
+            .and(PATIENT.MERGED_INTO.isNull())
+            .fetchAny();
+
+        return record != null
+            ? new VersionTag(record.value1(), Date.from(record.value2().toInstant()))
+            : null;
+    }
+
+    private @Nullable Patient getVersion(IIdType id)
+    {
+        if (!id.isVersionIdPartValidLong())
+        {
+            return null;
+        }
+
+        Patient resource;
+
+        var reader = router.reader();
+
+        var record = reader.select(PATIENT_HISTORY)
+            .from(PATIENT_HISTORY)
+            .where(PATIENT_HISTORY.ID.equal(id.getIdPart()))
+            .and(PATIENT_HISTORY.VERSION_ID.equal(id.getVersionIdPartAsLong()))
+            .fetchAny();
+        if (record != null)
+        {
+            try {
+                resource = resourceFromRecord(reader, record.value1());
+            } catch (JsonProcessingException e) {
+                throw new InternalErrorException("Cannot generate resource", e);
+            }
+        }
+        else
+        {
+            resource = null;
+        }
+
+        return resource;
+    }
+
+    /**
+     * Reads many patients at once, in the order of the given ids. Patients that do not exist are left out.
+     */
+    public List<Patient> getAll(Collection<String> ids)
+    {
+        var reader = router.reader();
+
+        var records = reader.selectFrom(PATIENT)
+            .where(PATIENT.ID.equal(DSL.any(ids.toArray(new String[0]))))
+            .fetchMap(PATIENT.ID);
+
+        var orderedRecords = new ArrayList<PatientRecord>(records.size());
+        for (var id : new LinkedHashSet<>(ids))
+        {
+            var record = records.get(id);
+            if (record != null)
+            {
+                orderedRecords.add(record);
+            }
+        }
+
+        return resourcesFromRecords(reader, orderedRecords);
+    }
+
+    public List<Patient> findByIdentifier(@Nullable String system, String value)
+    {
+        var key = new SearchKey(writeGeneration.get(), router.readAfterPosition(), system, value);
+        return coalescedSearches.execute(key, () -> loadByIdentifier(system, value));
+    }
+
+    private List<Patient> loadByIdentifier(@Nullable String system, String value)
+    {
+        var reader = router.reader();
+
+        // A system missing from the dictionary cannot be part of any identifier
+        var systemId = system != null ? findSystemId(reader, system) : null;
+        if (systemId == null)
+        {
+            return new ArrayList<>();
+        }
+
+        var records = selectByIdentifier(reader, systemId, value).fetch(Record1::value1);
+
+        return resourcesFromRecords(reader, records);
+    }
+
+    /**
+     * Cross-references an identifier: finds the active patients having it and reads only their identifiers in
+     * the target systems (all, if none are given), filtered by the database.
+     *
+     * @return The patients in order of their ids, none if no active patient has the identifier
+     */
+    public List<CrossReferencedPatient> crossReference(String system, String value,
+        Collection<String> targetSystems)
+    {
+        var reader = router.reader();
+
+        var systemId = findSystemId(reader, system);
+        if (systemId == null)
+        {
+            throw new InvalidRequestException("Unknown identifier system " + system);
+        }
+
+        var identifierCondition = DSL.noCondition();
+        if (!targetSystems.isEmpty())
+        {
+            var targetSystemIds = new ArrayList<Integer>(targetSystems.size());
+            for (var targetSystem : targetSystems)
+            {
+                var targetSystemId = findSystemId(reader, targetSystem);
+                if (targetSystemId == null)
+                {
+                    throw new ForbiddenOperationException("Unknown target system " + targetSystem);
+                }
+                targetSystemIds.add(targetSystemId);
+            }
+
+            identifierCondition = PATIENT_IDENTIFIER.SYSTEM_ID.equal(DSL.any(targetSystemIds.toArray(new Integer[0])));
+        }
+
+        // Left join, so patients without identifiers in the target systems are found all the same
+        var records = reader.select(PATIENT.ID, PATIENT_IDENTIFIER.SYSTEM_ID, PATIENT_IDENTIFIER.VALUE)
+            .from(PATIENT)
+            .leftJoin(PATIENT_IDENTIFIER)
+                .on(PATIENT_IDENTIFIER.PATIENT_ID.equal(PATIENT.ID))
+                .and(identifierCondition)
+            .where(PATIENT.ID.in(DSL.select(PATIENT_IDENTIFIER.PATIENT_ID)
+                .from(PATIENT_IDENTIFIER)
+                .where(PATIENT_IDENTIFIER.SYSTEM_ID.equal(systemId))
+                .and(PATIENT_IDENTIFIER.VALUE.equal(value))))
+            .and(PATIENT.MERGED_INTO.isNull())
+            .orderBy(PATIENT.ID, PATIENT_IDENTIFIER.ORD)
+            .fetch();
+
+        var identifiers = new LinkedHashMap<String, List<Identifier>>();
+        for (var record : records)
+        {
+            var patientIdentifiers = identifiers.computeIfAbsent(record.value1(), id -> new ArrayList<>());
+            if (record.value2() != null)
+            {
+                patientIdentifiers.add(new Identifier()
+                    .setSystem(systemOf(reader, record.value2()))
+                    .setValue(record.value3()));
+            }
+        }
+
+        var result = new ArrayList<CrossReferencedPatient>(identifiers.size());
+        for (var entry : identifiers.entrySet())
+        {
+            result.add(new CrossReferencedPatient(entry.getKey(), entry.getValue()));
+        }
 
-        var resource = resourceFromRecord(transactionResult.record());
+        return result;
+    }
 
-        publisher.publishEvent(new ResourceChangeEvent(resource));
+    /**
+     * Like {@link #findByIdentifier(String, String)}, but hands patients to the consumer in chunks as they are
+     * read from a cursor, so no more than one chunk is held in memory. Not coalesced, as sharing the result would
+     * mean holding all of it.
+     */
+    public void streamByIdentifier(@Nullable String system, String value, Consumer<List<Patient>> consumer)
+    {
+        var reader = router.reader();
 
-        var outcome = new MethodOutcome(resource.getIdElement(), transactionResult.created());
-        outcome.setResource(resource);
+        var systemId = system != null ? findSystemId(reader, system) : null;
+        if (systemId == null)
+        {
+            return;
+        }
 
-        return outcome;
+        stream(reader, trxDsl -> selectByIdentifier(trxDsl, systemId, value), consumer);
     }
 
-    public Patient get(IIdType id)
+    /**
+     * Hands all patients, merged ones included, to the consumer in chunks as they are read from a cursor.
+     * With a date given, only patients updated since then are included. Patients come in last update order.
+     */
+    public void streamAll(@Nullable Date since, Consumer<List<Patient>> consumer)
     {
-        Patient resource;
+        var condition = since != null
+            ? PATIENT.LAST_UPDATED.greaterOrEqual(OffsetDateTime.ofInstant(since.toInstant(), ZoneOffset.UTC))
+            : DSL.noCondition();
 
-        var record = dsl.select(PATIENT)
+        // Interrupted readers can resume from the last one read
+        stream(router.reader(), trxDsl -> trxDsl.select(PATIENT)
             .from(PATIENT)
-            .where(PATIENT.ID.equal(id.getIdPart()))
-            .fetchAny();
-        if (record != null)
+            .where(condition)
+            .orderBy(PATIENT.LAST_UPDATED, PATIENT.ID), consumer);
+    }
+
+    /**
+     * Reads a page of all patients, merged ones included, in last update order and in one short transaction.
+     * With a position given, the page continues after it, otherwise it starts at since like streamAll. The
+     * position of the page's last patient continues the next page; it is null if the page is empty.
+     */
+    public SnapshotPage fetchPage(@Nullable Date since, @Nullable String after, int count)
+    {
+        Condition condition;
+        if (after != null)
         {
-            try {
-                resource = resourceFromRecord(record.value1());
-            } catch (JsonProcessingException e) {
-                throw new InternalErrorException("Cannot generate resource", e);
+            // Last updates are stored more precisely than FHIR instants, so the position keeps them exactly
+            var separator = after.indexOf('/');
+            if (separator < 0)
+            {
+                throw new InvalidRequestException("Invalid position " + after);
+            }
+
+            OffsetDateTime lastUpdated;
+            try
+            {
+                lastUpdated = OffsetDateTime.ofInstant(Instant.parse(after.substring(0, separator)), ZoneOffset.UTC);
+            }
+            catch (DateTimeParseException e)
+            {
+                throw new InvalidRequestException("Invalid position " + after);
             }
+
+            var id = after.substring(separator + 1);
+            condition = PATIENT.LAST_UPDATED.greaterOrEqual(lastUpdated)
+                .and(DSL.row(PATIENT.LAST_UPDATED, PATIENT.ID).greaterThan(lastUpdated, id));
+        }
+        else if (since != null)
+        {
+            condition = PATIENT.LAST_UPDATED.greaterOrEqual(
+                OffsetDateTime.ofInstant(since.toInstant(), ZoneOffset.UTC));
         }
         else
         {
-            resource = null;
+            condition = DSL.noCondition();
         }
 
-        return resource;
+        return router.reader().transactionResult(trx -> {
+            var records = trx.dsl().select(PATIENT)
+                .from(PATIENT)
+                .where(condition)
+                .orderBy(PATIENT.LAST_UPDATED, PATIENT.ID)
+                .limit(count)
+                .fetch(Record1::value1);
+
+            String next = null;
+            if (!records.isEmpty())
+            {
+                var last = records.get(records.size() - 1);
+                next = last.getLastUpdated().toInstant() + "/" + last.getId();
+            }
+
+            return new SnapshotPage(resourcesFromRecords(trx.dsl(), records), next);
+        });
+    }
+
+    private void stream(DSLContext reader, Function<DSLContext, ResultQuery<Record1<PatientRecord>>> query,
+        Consumer<List<Patient>> consumer)
+    {
+        // Postgres only fetches a cursor in batches within a transaction
+        reader.transaction(trx -> {
+            try (var cursor = query.apply(trx.dsl())
+                .fetchSize(STREAM_CHUNK_SIZE)
+                .fetchLazy())
+            {
+                while (cursor.hasNext())
+                {
+                    var records = cursor.fetchNext(STREAM_CHUNK_SIZE).map(Record1::value1);
+                    consumer.accept(resourcesFromRecords(trx.dsl(), records));
+                }
+            }
+        });
     }
 
-    public List<Patient> findByIdentifier(String system, String value)
+    private static SelectConditionStep<Record1<PatientRecord>> selectByIdentifier(DSLContext dsl, int systemId,
+        String value)
     {
-        var result = new ArrayList<Patient>();
+        return dsl.select(PATIENT)
+            .from(PATIENT)
+            .where(PATIENT.ID.in(DSL.select(PATIENT_IDENTIFIER.PATIENT_ID)
+                .from(PATIENT_IDENTIFIER)
+                .where(PATIENT_IDENTIFIER.SYSTEM_ID.equal(systemId))
+                .and(PATIENT_IDENTIFIER.VALUE.equal(value))));
+    }
 
-        var identifier = new IdentifierRecord(system, value);
-        String identifierJson;
-        try {
-            identifierJson = objectMapper.writeValueAsString(new IdentifierRecord[] { identifier });
-        } catch (JsonProcessingException e) {
-            throw new InternalErrorException("Cannot generate search parameter", e);
+    private static List<Patient> copyAll(List<Patient> patients)
+    {
+        var copies = new ArrayList<Patient>(patients.size());
+        for (var patient : patients)
+        {
+            copies.add(patient.copy());
         }
+        return copies;
+    }
 
-        var records = dsl.select(PATIENT)
-            .from(PATIENT)
-            .where(PATIENT.IDENTIFIERS.contains(JSONB.jsonb(identifierJson)))
-            .fetch();
+    /**
+     * Maps patients with their identifiers and survivors, fetched in one query each.
+     */
+    private List<Patient> resourcesFromRecords(DSLContext reader, List<PatientRecord> records)
+    {
+        var result = new ArrayList<Patient>(records.size());
+
+        var ids = new ArrayList<String>();
+        var mergedIds = new ArrayList<String>();
         for (var record : records)
         {
-            Patient resource;
-            try {
-                resource = resourceFromRecord(record.value1());
-            } catch (JsonProcessingException e) {
-                throw new InternalErrorException("Cannot generate resource", e);
+            ids.add(record.getId());
+            if (record.getMergedInto() != null)
+            {
+                mergedIds.add(record.getId());
             }
-            result.add(resource);
+        }
+
+        Map<String, String> survivorIds = mergedIds.isEmpty() ? Map.of() : resolveSurvivors(reader, mergedIds);
+        var identifiers = ids.isEmpty() ? Map.<String, List<IdentifierRecord>>of() : fetchIdentifiers(reader, ids);
+
+        for (var record : records)
+        {
+            result.add(resourceFromRecord(record, identifiers.get(record.getId()),
+                survivorIds.get(record.getId())));
         }
 
         return result;
@@ -199,7 +1015,11 @@ public class PatientService
         var sourceIdPart = sourceId.getIdPart();
         var targetIdPart = targetId.getIdPart();
 
+        var repointedPatients = new ArrayList<Patient>();
+
         var transactionResult = dsl.transactionResult(trx -> {
+            repointedPatients.clear();
+
             var targetFetch = trx.dsl().select(PATIENT)
                 .from(PATIENT)
                 .where(PATIENT.ID.equal(targetIdPart))
@@ -232,49 +1052,488 @@ public class PatientService
             var sourceRecord = trx.dsl().update(PATIENT)
                 .set(PATIENT.MERGED_INTO, targetIdPart)
                 .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                .set(PATIENT.VERSION_ID, PATIENT.VERSION_ID.plus(1L))
                 .where(PATIENT.ID.equal(sourceIdPart))
                 .returningResult(PATIENT)
                 .fetchAny().value1();
 
-            return new MergeTransactionResult(sourceRecord, targetRecord);
+            insertHistory(trx.dsl(), List.of(sourceIdPart));
+
+            if (compressMergePaths)
+            {
+                // Re-point everything previously merged into the source, so merged_into always
+                // names the survivor. These rows get new versions and are published like the source.
+                var repointedRecords = trx.dsl().update(PATIENT)
+                    .set(PATIENT.MERGED_INTO, targetIdPart)
+                    .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                    .set(PATIENT.VERSION_ID, PATIENT.VERSION_ID.plus(1L))
+                    .where(PATIENT.MERGED_INTO.equal(sourceIdPart))
+                    .returningResult(PATIENT)
+                    .fetch(Record1::value1);
+
+                insertHistory(trx.dsl(), repointedRecords.stream().map(PatientRecord::getId).toList());
+
+                repointedPatients.addAll(resourcesFromRecords(trx.dsl(), repointedRecords));
+            }
+
+            var identifiers = fetchIdentifiers(trx.dsl(), List.of(sourceIdPart, targetIdPart));
+
+            return new MergeTransactionResult(sourceRecord, identifiers.get(sourceIdPart),
+                targetRecord, identifiers.get(targetIdPart));
         });
 
-        Patient sourcePatient;
-        try {
-            sourcePatient = resourceFromRecord(transactionResult.source());
-        } catch (JsonProcessingException e) {
-            throw new InternalErrorException("Cannot generate source resource", e);
-        }
+        written();
+
+        var sourcePatient = resourceFromRecord(transactionResult.source(),
+            transactionResult.sourceIdentifiers(), null);
 
         publisher.publishEvent(new ResourceChangeEvent(sourcePatient));
 
-        Patient targetPatient;
-        try {
-            targetPatient = resourceFromRecord(transactionResult.target());
-        } catch (JsonProcessingException e) {
-            throw new InternalErrorException("Cannot generate target resource", e);
+        for (var repointedPatient : repointedPatients)
+        {
+            publisher.publishEvent(new ResourceChangeEvent(repointedPatient));
         }
 
+        var targetPatient = resourceFromRecord(transactionResult.target(),
+            transactionResult.targetIdentifiers(), null);
+
         return new MergeResult(sourcePatient, targetPatient);
     }
 
-    private Patient resourceFromRecord(PatientRecord record) throws JsonProcessingException
+    public List<MergeResult> mergeAll(List<MergeRequest> requests)
+    {
+        var sourceIdParts = new ArrayList<String>();
+        var targetIdParts = new ArrayList<String>();
+        for (var request : requests)
+        {
+            sourceIdParts.add(request.sourceId().getIdPart());
+            targetIdParts.add(request.targetId().getIdPart());
+        }
+
+        var sourceIdSet = new HashSet<String>();
+        for (int i = 0; i < sourceIdParts.size(); ++i)
+        {
+            var sourceIdPart = sourceIdParts.get(i);
+            if (!sourceIdSet.add(sourceIdPart))
+            {
+                throw new InvalidRequestException("Source " + sourceIdPart + " is merged more than once");
+            }
+            else if (sourceIdPart.equals(targetIdParts.get(i)))
+            {
+                throw new InvalidRequestException("Source " + sourceIdPart + " is its own target");
+            }
+        }
+
+        // Chained (and thereby cyclic) merges would depend on the order of the pairs
+        for (var targetIdPart : targetIdParts)
+        {
+            if (sourceIdSet.contains(targetIdPart))
+            {
+                throw new UnprocessableEntityException("Target " + targetIdPart
+                    + " is also a source, merge chains must be split into separate requests");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Row3<Integer, String, String>[] rows = new Row3[sourceIdParts.size()];
+        for (int i = 0; i < rows.length; ++i)
+        {
+            rows[i] = DSL.row(i, sourceIdParts.get(i), targetIdParts.get(i));
+        }
+
+        var pairs = DSL.values(rows).as("pairs", "ord", "source", "target");
+        var pairOrd = pairs.field("ord", Integer.class);
+        var pairSource = pairs.field("source", String.class);
+        var pairTarget = pairs.field("target", String.class);
+
+        var repointedPatients = new ArrayList<Patient>();
+
+        var transactionResult = dsl.transactionResult(trx -> {
+            repointedPatients.clear();
+
+            var source = PATIENT.as("source_patient");
+            var target = PATIENT.as("target_patient");
+
+            // Validate all pairs at once
+            var checkFetch = trx.dsl()
+                .select(pairOrd, source.ID, source.MERGED_INTO, target)
+                .from(pairs)
+                .leftJoin(source).on(source.ID.equal(pairSource))
+                .leftJoin(target).on(target.ID.equal(pairTarget))
+                .orderBy(pairOrd)
+                .fetch();
+
+            var targetRecords = new ArrayList<PatientRecord>();
+            for (var check : checkFetch)
+            {
+                var ord = check.value1().intValue();
+                var targetRecord = check.value4();
+
+                if (check.value2() == null)
+                {
+                    throw new InvalidRequestException("Source " + sourceIdParts.get(ord) + " does not exist");
+                }
+                else if (targetRecord == null || targetRecord.getId() == null)
+                {
+                    throw new InvalidRequestException("Target " + targetIdParts.get(ord) + " does not exist");
+                }
+                else if (check.value3() != null)
+                {
+                    throw new UnprocessableEntityException("Source " + sourceIdParts.get(ord) + " is already merged");
+                }
+                else if (targetRecord.getMergedInto() != null)
+                {
+                    throw new UnprocessableEntityException("Target " + targetIdParts.get(ord) + " is already merged");
+                }
+
+                targetRecords.add(targetRecord);
+            }
+
+            // Sources are checked to be unmerged again, guarding against concurrent merges
+            var sourceRecords = trx.dsl().update(PATIENT)
+                .set(PATIENT.MERGED_INTO, pairTarget)
+                .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                .set(PATIENT.VERSION_ID, PATIENT.VERSION_ID.plus(1L))
+                .from(pairs)
+                .where(PATIENT.ID.equal(pairSource))
+                .and(PATIENT.MERGED_INTO.isNull())
+                .returningResult(PATIENT)
+                .fetch(Record1::value1);
+            if (sourceRecords.size() != requests.size())
+            {
+                throw new UnprocessableEntityException("Sources were merged concurrently");
+            }
+
+            insertHistory(trx.dsl(), sourceIdParts);
+
+            if (compressMergePaths)
+            {
+                var repointedRecords = trx.dsl().update(PATIENT)
+                    .set(PATIENT.MERGED_INTO, pairTarget)
+                    .set(PATIENT.LAST_UPDATED, DSL.currentOffsetDateTime())
+                    .set(PATIENT.VERSION_ID, PATIENT.VERSION_ID.plus(1L))
+                    .from(pairs)
+                    .where(PATIENT.MERGED_INTO.equal(pairSource))
+                    .returningResult(PATIENT)
+                    .fetch(Record1::value1);
+
+                insertHistory(trx.dsl(), repointedRecords.stream().map(PatientRecord::getId).toList());
+
+                repointedPatients.addAll(resourcesFromRecords(trx.dsl(), repointedRecords));
+            }
+
+            var identifierIds = new HashSet<String>(sourceIdParts);
+            identifierIds.addAll(targetIdParts);
+            var identifiers = fetchIdentifiers(trx.dsl(), identifierIds);
+
+            var sourceRecordMap = new HashMap<String, PatientRecord>();
+            for (var sourceRecord : sourceRecords)
+            {
+                sourceRecordMap.put(sourceRecord.getId(), sourceRecord);
+            }
+
+            var results = new ArrayList<MergeTransactionResult>();
+            for (int i = 0; i < sourceIdParts.size(); ++i)
+            {
+                results.add(new MergeTransactionResult(
+                    sourceRecordMap.get(sourceIdParts.get(i)), identifiers.get(sourceIdParts.get(i)),
+                    targetRecords.get(i), identifiers.get(targetIdParts.get(i))));
+            }
+
+            return results;
+        });
+
+        written();
+
+        var mergeResults = new ArrayList<MergeResult>();
+
+        for (var result : transactionResult)
+        {
+            var sourcePatient = resourceFromRecord(result.source(), result.sourceIdentifiers(), null);
+            var targetPatient = resourceFromRecord(result.target(), result.targetIdentifiers(), null);
+
+            publisher.publishEvent(new ResourceChangeEvent(sourcePatient));
+
+            mergeResults.add(new MergeResult(sourcePatient, targetPatient));
+        }
+
+        for (var repointedPatient : repointedPatients)
+        {
+            publisher.publishEvent(new ResourceChangeEvent(repointedPatient));
+        }
+
+        return mergeResults;
+    }
+
+    /**
+     * Called after committing changes: reads started from now on do not join reads started before.
+     */
+    private void written()
+    {
+        writeGeneration.incrementAndGet();
+        router.written();
+    }
+
+    /**
+     * Follows merged_into of the given patients to their surviving (unmerged) patients in one query.
+     * Patients that do not exist are missing from the result, unmerged patients map to themselves.
+     */
+    private static Map<String, String> resolveSurvivors(DSLContext dsl, Collection<String> ids)
+    {
+        var chain = DSL.name("chain");
+        var chainOrigin = DSL.field(DSL.name("chain", "origin"), String.class);
+        var chainId = DSL.field(DSL.name("chain", "id"), String.class);
+        var chainMergedInto = DSL.field(DSL.name("chain", "merged_into"), String.class);
+
+        var cte = chain.fields("origin", "id", "merged_into").as(
+            DSL.select(PATIENT.ID, PATIENT.ID, PATIENT.MERGED_INTO)
+                .from(PATIENT)
+                .where(PATIENT.ID.in(ids))
+            .unionAll(
+                DSL.select(chainOrigin, PATIENT.ID, PATIENT.MERGED_INTO)
+                    .from(PATIENT)
+                    .join(DSL.table(chain)).on(PATIENT.ID.equal(chainMergedInto))
+            )
+        );
+
+        return dsl.withRecursive(cte)
+            .select(chainOrigin, chainId)
+            .from(cte)
+            .where(chainMergedInto.isNull())
+            .fetchMap(chainOrigin, chainId);
+    }
+
+    /**
+     * Returns the dictionary id of an identifier system, adding the system if it is new.
+     */
+    private int systemIdOf(String system)
+    {
+        var systemId = systemIds.get(system);
+        if (systemId == null)
+        {
+            // Updating on conflict lets RETURNING yield the id of an existing system
+            systemId = dsl.insertInto(IDENTIFIER_SYSTEM)
+                .set(IDENTIFIER_SYSTEM.SYSTEM, system)
+                .onConflict(IDENTIFIER_SYSTEM.SYSTEM)
+                .doUpdate()
+                .set(IDENTIFIER_SYSTEM.SYSTEM, system)
+                .returningResult(IDENTIFIER_SYSTEM.ID)
+                .fetchOne(Record1::value1);
+            if (systemId == null)
+            {
+                throw new InternalErrorException("Cannot store identifier system " + system);
+            }
+
+            cacheSystem(systemId, system);
+        }
+
+        return systemId;
+    }
+
+    private @Nullable Integer findSystemId(DSLContext dsl, String system)
+    {
+        var systemId = systemIds.get(system);
+        if (systemId == null)
+        {
+            systemId = dsl.select(IDENTIFIER_SYSTEM.ID)
+                .from(IDENTIFIER_SYSTEM)
+                .where(IDENTIFIER_SYSTEM.SYSTEM.equal(system))
+                .fetchOne(Record1::value1);
+            if (systemId != null)
+            {
+                cacheSystem(systemId, system);
+            }
+        }
+
+        return systemId;
+    }
+
+    private String systemOf(DSLContext dsl, int systemId)
+    {
+        var system = systems.get(systemId);
+        if (system == null)
+        {
+            system = dsl.select(IDENTIFIER_SYSTEM.SYSTEM)
+                .from(IDENTIFIER_SYSTEM)
+                .where(IDENTIFIER_SYSTEM.ID.equal(systemId))
+                .fetchOne(Record1::value1);
+            if (system == null)
+            {
+                throw new InternalErrorException("Unknown identifier system " + systemId);
+            }
+
+            cacheSystem(systemId, system);
+        }
+
+        return system;
+    }
+
+    private void cacheSystem(int systemId, String system)
+    {
+        systemIds.put(system, systemId);
+        systems.put(systemId, system);
+    }
+
+    /**
+     * Hashes the identifier set independent of order and duplicates, to detect updates that change nothing.
+     */
+    private static byte[] identifiersHash(List<Integer> systemIdList, List<IdentifierRecord> identifierList)
+    {
+        var pairs = new ArrayList<Map.Entry<Integer, String>>(identifierList.size());
+        for (int i = 0; i < identifierList.size(); ++i)
+        {
+            pairs.add(Map.entry(systemIdList.get(i), identifierList.get(i).value()));
+        }
+        pairs.sort(Map.Entry.<Integer, String>comparingByKey().thenComparing(Map.Entry.comparingByValue()));
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalErrorException("Cannot hash identifiers", e);
+        }
+
+        Map.Entry<Integer, String> previous = null;
+        for (var pair : pairs)
+        {
+            if (!pair.equals(previous))
+            {
+                var value = pair.getValue().getBytes(StandardCharsets.UTF_8);
+                digest.update(ByteBuffer.allocate(8).putInt(pair.getKey()).putInt(value.length).array());
+                digest.update(value);
+            }
+            previous = pair;
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Fetches the identifiers of the given patients in one query, keeping their order.
+     * Every given patient is part of the result, if only with an empty list.
+     */
+    private Map<String, List<IdentifierRecord>> fetchIdentifiers(DSLContext dsl, Collection<String> ids)
+    {
+        var result = new HashMap<String, List<IdentifierRecord>>();
+        for (var id : ids)
+        {
+            result.put(id, new ArrayList<>());
+        }
+
+        var records = dsl.select(PATIENT_IDENTIFIER.PATIENT_ID, PATIENT_IDENTIFIER.SYSTEM_ID, PATIENT_IDENTIFIER.VALUE)
+            .from(PATIENT_IDENTIFIER)
+            .where(PATIENT_IDENTIFIER.PATIENT_ID.in(ids))
+            .orderBy(PATIENT_IDENTIFIER.PATIENT_ID, PATIENT_IDENTIFIER.ORD)
+            .fetch();
+        for (var record : records)
+        {
+            result.computeIfAbsent(record.value1(), id -> new ArrayList<>())
+                .add(new IdentifierRecord(systemOf(dsl, record.value2()), record.value3()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces the identifiers of the given patients, ids and writes matched by position.
+     */
+    private static void writeIdentifiers(DSLContext dsl, List<String> ids, List<PendingWrite> writes)
+    {
+        if (ids.isEmpty())
+        {
+            return;
+        }
+
+        dsl.deleteFrom(PATIENT_IDENTIFIER)
+            .where(PATIENT_IDENTIFIER.PATIENT_ID.in(ids))
+            .execute();
+
+        var insert = dsl.insertInto(PATIENT_IDENTIFIER,
+            PATIENT_IDENTIFIER.PATIENT_ID, PATIENT_IDENTIFIER.ORD,
+            PATIENT_IDENTIFIER.SYSTEM_ID, PATIENT_IDENTIFIER.VALUE);
+        var empty = true;
+        for (int i = 0; i < ids.size(); ++i)
+        {
+            var write = writes.get(i);
+            for (int j = 0; j < write.identifiers().size(); ++j)
+            {
+                insert = insert.values(ids.get(i), (short) j, write.systemIds().get(j),
+                    write.identifiers().get(j).value());
+                empty = false;
+            }
+        }
+
+        if (!empty)
+        {
+            insert.execute();
+        }
+    }
+
+    /**
+     * Copies the current state of the given patients to their history in one statement.
+     * Identifiers are stored as compact [system_id, value] pairs.
+     */
+    private static void insertHistory(DSLContext dsl, Collection<String> ids)
+    {
+        if (ids.isEmpty())
+        {
+            return;
+        }
+
+        var identifiers = DSL.coalesce(
+            DSL.select(DSL.jsonbArrayAgg(DSL.jsonbArray(PATIENT_IDENTIFIER.SYSTEM_ID, PATIENT_IDENTIFIER.VALUE))
+                    .orderBy(PATIENT_IDENTIFIER.ORD))
+                .from(PATIENT_IDENTIFIER)
+                .where(PATIENT_IDENTIFIER.PATIENT_ID.equal(PATIENT.ID))
+                .asField(),
+            JSONB.jsonb("[]"));
+
+        dsl.insertInto(PATIENT_HISTORY,
+                PATIENT_HISTORY.ID, PATIENT_HISTORY.VERSION_ID, PATIENT_HISTORY.LAST_UPDATED,
+                PATIENT_HISTORY.IDENTIFIERS, PATIENT_HISTORY.MERGED_INTO)
+            .select(DSL.select(PATIENT.ID, PATIENT.VERSION_ID, PATIENT.LAST_UPDATED, identifiers, PATIENT.MERGED_INTO)
+                .from(PATIENT)
+                .where(PATIENT.ID.in(ids)))
+            .execute();
+    }
+
+    private Patient resourceFromRecord(PatientRecord record, @Nullable List<IdentifierRecord> identifiers,
+        @Nullable String survivorId)
+    {
+        return resourceFromColumns(record.getId(), record.getVersionId(), record.getLastUpdated(),
+            identifiers != null ? identifiers : List.of(),
+            survivorId != null ? survivorId : record.getMergedInto());
+    }
+
+    private Patient resourceFromRecord(DSLContext dsl, PatientHistoryRecord record) throws JsonProcessingException
+    {
+        var identifiers = new ArrayList<IdentifierRecord>();
+        for (var pair : objectMapper.readTree(record.getIdentifiers().data()))
+        {
+            identifiers.add(new IdentifierRecord(systemOf(dsl, pair.get(0).asInt()), pair.get(1).asText()));
+        }
+
+        return resourceFromColumns(record.getId(), record.getVersionId(), record.getLastUpdated(),
+            identifiers, record.getMergedInto());
+    }
+
+    private Patient resourceFromColumns(String id, Long versionId, OffsetDateTime lastUpdated,
+        List<IdentifierRecord> identifiers, @Nullable String mergedInto)
     {
         var resource = new Patient();
 
-        resource.setIdElement(new IdType("Patient", record.getId()));
+        resource.setIdElement(new IdType("Patient", id, versionId.toString()));
 
         resource.setMeta(new Meta()
-            .setLastUpdated(Date.from(record.getLastUpdated().toInstant()))
+            .setVersionId(versionId.toString())
+            .setLastUpdated(Date.from(lastUpdated.toInstant()))
         );
 
-        var identifiers = objectMapper.readValue(record.getIdentifiers().data(), IdentifierRecord[].class);
         for (var identifier : identifiers)
         {
             resource.addIdentifier().setSystem(identifier.system()).setValue(identifier.value());
         }
 
-        var mergedInto = record.getMergedInto();
         if (mergedInto != null)
         {
             resource.setActive(false);
@@ -291,11 +1550,30 @@ public class PatientService
         return resource;
     }
 
+    public record MergeRequest(IIdType sourceId, IIdType targetId) { }
+
     public record MergeResult(Patient source, Patient target) { }
 
+    public record VersionTag(long versionId, Date lastUpdated) { }
+
+    public record CrossReferencedPatient(String id, List<Identifier> identifiers) { }
+
+    public record SnapshotPage(List<Patient> patients, @Nullable String next) { }
+
+    private record ReadKey(long writeGeneration, long readAfter, @Nullable String id, @Nullable String versionId) { }
+
+    private record SearchKey(long writeGeneration, long readAfter, @Nullable String system, String value) { }
+
     private record IdentifierRecord(String system, String value) { }
 
-    private record CreateOrUpdateTransactionResult(boolean created, PatientRecord record) { }
+    private record PendingWrite(@Nullable String id, @Nullable Long expectedVersionId,
+        List<IdentifierRecord> identifiers, List<Integer> systemIds, byte[] identifiersHash) { }
+
+    private record WriteOutcome(@Nullable CreateOrUpdateTransactionResult result,
+        @Nullable RuntimeException error) { }
+
+    private record CreateOrUpdateTransactionResult(boolean created, boolean changed, PatientRecord record) { }
 
-    private record MergeTransactionResult(PatientRecord source, PatientRecord target) { }
+    private record MergeTransactionResult(PatientRecord source, List<IdentifierRecord> sourceIdentifiers,
+        PatientRecord target, List<IdentifierRecord> targetIdentifiers) { }
 }
@@ -0,0 +1,71 @@
+package de.tobchen.health.patientindex.main.services;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Lets concurrent calls with the same key share one execution. The first caller runs it, callers arriving while
+ * it runs wait for its result (or exception) instead of running it again.
+ */
+final class SingleFlight<K, V>
+{
+    private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    private final UnaryOperator<V> share;
+    private final Runnable onShared;
+
+    /**
+     * @param share Applied to the result before handing it to a waiting caller, e.g. to copy mutable results
+     * @param onShared Run for every caller that waits instead of executing
+     */
+    SingleFlight(UnaryOperator<V> share, Runnable onShared)
+    {
+        this.share = share;
+        this.onShared = onShared;
+    }
+
+    V execute(K key, Supplier<V> supplier)
+    {
+        var flight = new CompletableFuture<V>();
+
+        var running = flights.putIfAbsent(key, flight);
+        if (running != null)
+        {
+            onShared.run();
+
+            try
+            {
+                return share.apply(running.join());
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof RuntimeException cause)
+                {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+
+        try
+        {
+            var value = supplier.get();
+            flight.complete(value);
+            return value;
+        }
+        catch (RuntimeException | Error e)
+        {
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            // Later callers execute again, so they see changes committed since
+            flights.remove(key, flight);
+        }
+    }
+}
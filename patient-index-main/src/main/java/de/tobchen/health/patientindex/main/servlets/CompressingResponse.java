@@ -0,0 +1,221 @@
+package de.tobchen.health.patientindex.main.servlets;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.lang.Nullable;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the response body with gzip or deflate. The compressing stream is only set up once the body is
+ * written, so responses without a body (e.g. 304) go out unchanged.
+ */
+class CompressingResponse extends HttpServletResponseWrapper
+{
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private final String encoding;
+
+    @Nullable
+    private DeflaterOutputStream compressingStream = null;
+    @Nullable
+    private ServletOutputStream outputStream = null;
+    @Nullable
+    private PrintWriter writer = null;
+    private boolean finished = false;
+
+    CompressingResponse(HttpServletResponse response, String encoding)
+    {
+        super(response);
+
+        this.encoding = encoding;
+    }
+
+    /**
+     * Picks the encoding the client prefers among gzip and deflate (gzip on ties), or none.
+     */
+    static @Nullable String negotiate(@Nullable String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return null;
+        }
+
+        String encoding = null;
+        var encodingQuality = 0.0;
+
+        for (var part : acceptEncoding.split(","))
+        {
+            var parameters = part.split(";");
+            var name = parameters[0].trim().toLowerCase();
+
+            var quality = 1.0;
+            for (int i = 1; i < parameters.length; ++i)
+            {
+                var parameter = parameters[i].trim();
+                if (parameter.startsWith("q="))
+                {
+                    try
+                    {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (name.equals("*"))
+            {
+                name = GZIP;
+            }
+
+            if ((name.equals(GZIP) || name.equals(DEFLATE)) && quality > encodingQuality
+                || name.equals(GZIP) && quality > 0 && quality == encodingQuality)
+            {
+                encoding = name;
+                encodingQuality = quality;
+            }
+        }
+
+        return encoding;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        if (writer != null)
+        {
+            throw new IllegalStateException("Writer already in use");
+        }
+
+        return stream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        var currentWriter = writer;
+        if (currentWriter == null)
+        {
+            currentWriter = new PrintWriter(new OutputStreamWriter(stream(), Charset.forName(getCharacterEncoding())));
+            writer = currentWriter;
+        }
+
+        return currentWriter;
+    }
+
+    @Override
+    public void setContentLength(int length)
+    {
+        // The length of the compressed body is unknown
+    }
+
+    @Override
+    public void setContentLengthLong(long length)
+    {
+        // The length of the compressed body is unknown
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+        if (writer != null)
+        {
+            writer.flush();
+        }
+        if (compressingStream != null && !finished)
+        {
+            compressingStream.flush();
+        }
+
+        super.flushBuffer();
+    }
+
+    /**
+     * Writes out everything still buffered by the compressor.
+     */
+    void finish() throws IOException
+    {
+        if (writer != null)
+        {
+            writer.flush();
+        }
+        if (compressingStream != null && !finished)
+        {
+            compressingStream.finish();
+            finished = true;
+        }
+    }
+
+    private ServletOutputStream stream() throws IOException
+    {
+        var currentStream = outputStream;
+        if (currentStream == null)
+        {
+            var response = (HttpServletResponse) getResponse();
+            response.setHeader("Content-Encoding", encoding);
+
+            var target = response.getOutputStream();
+
+            // Sync flush, so flushing streamed responses sends everything compressed so far
+            var compressor = encoding.equals(GZIP)
+                ? new GZIPOutputStream(target, true)
+                : new DeflaterOutputStream(target, true);
+
+            currentStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException
+                {
+                    compressor.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    compressor.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException
+                {
+                    compressor.flush();
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    finished = true;
+                    compressor.close();
+                }
+
+                @Override
+                public boolean isReady()
+                {
+                    return target.isReady();
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener)
+                {
+                    target.setWriteListener(writeListener);
+                }
+            };
+
+            compressingStream = compressor;
+            outputStream = currentStream;
+        }
+
+        return currentStream;
+    }
+}
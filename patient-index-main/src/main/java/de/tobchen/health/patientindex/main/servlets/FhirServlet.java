@@ -1,20 +1,38 @@
 package de.tobchen.health.patientindex.main.servlets;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+
+import org.springframework.lang.Nullable;
+
 import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import ca.uhn.fhir.rest.server.RestfulServer;
+import de.tobchen.health.patientindex.main.interceptors.ReadYourWritesInterceptor;
+import de.tobchen.health.patientindex.main.interceptors.StreamingSearchInterceptor;
 import de.tobchen.health.patientindex.main.providers.PatientProvider;
 
 public class FhirServlet extends RestfulServer
 {
     private final PatientProvider patientProvider;
+    private final ReadYourWritesInterceptor readYourWritesInterceptor;
+    private final StreamingSearchInterceptor streamingSearchInterceptor;
 
-    public FhirServlet(FhirContext context, PatientProvider patientProvider)
+    public FhirServlet(FhirContext context, PatientProvider patientProvider,
+        ReadYourWritesInterceptor readYourWritesInterceptor, StreamingSearchInterceptor streamingSearchInterceptor)
     {
         super(context);
         
         this.patientProvider = patientProvider;
+        this.readYourWritesInterceptor = readYourWritesInterceptor;
+        this.streamingSearchInterceptor = streamingSearchInterceptor;
     }
 
     @Override
@@ -22,6 +40,45 @@ public class FhirServlet extends RestfulServer
     {
         super.initialize();
 
+        // Reads carry the version as ETag, so clients can revalidate with If-None-Match
+        setETagSupport(ETagSupportEnum.ENABLED);
+
         setResourceProviders(patientProvider);
+
+        registerInterceptor(readYourWritesInterceptor);
+        registerInterceptor(streamingSearchInterceptor);
+    }
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        var encoding = CompressingResponse.negotiate(request.getHeader(Constants.HEADER_ACCEPT_ENCODING));
+        if (encoding == null)
+        {
+            super.service(request, response);
+            return;
+        }
+
+        response.addHeader("Vary", Constants.HEADER_ACCEPT_ENCODING);
+
+        // All compression happens here, HAPI must not gzip on its own
+        var compressingResponse = new CompressingResponse(response, encoding);
+        super.service(new HttpServletRequestWrapper(request) {
+            @Override
+            public @Nullable String getHeader(String name)
+            {
+                return Constants.HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name) ? null : super.getHeader(name);
+            }
+
+            @Override
+            public Enumeration<String> getHeaders(String name)
+            {
+                return Constants.HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name)
+                    ? Collections.emptyEnumeration()
+                    : super.getHeaders(name);
+            }
+        }, compressingResponse);
+        compressingResponse.finish();
     }
 }
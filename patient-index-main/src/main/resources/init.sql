@@ -1,6 +1,52 @@
 CREATE TABLE patient (
     id varchar(64) PRIMARY KEY,
     last_updated timestamptz NOT NULL,
-    identifiers jsonb NOT NULL,
-    merged_into varchar(64) REFERENCES patient(id)
+    merged_into varchar(64) REFERENCES patient(id),
+    version_id bigint NOT NULL,
+    -- SHA-256 of the sorted identifier set, unchanged updates are skipped
+    identifiers_hash bytea
+) PARTITION BY HASH (id);
+
+-- Lets read models catch up on patients updated since a point in time
+CREATE INDEX patient_last_updated_idx ON patient (last_updated);
+
+CREATE TABLE identifier_system (
+    id serial PRIMARY KEY,
+    system text NOT NULL UNIQUE
 );
+
+CREATE TABLE patient_identifier (
+    patient_id varchar(64) REFERENCES patient(id),
+    ord smallint,
+    system_id integer NOT NULL REFERENCES identifier_system(id),
+    value text NOT NULL,
+    PRIMARY KEY (patient_id, ord)
+) PARTITION BY HASH (patient_id);
+
+CREATE INDEX patient_identifier_system_id_value_idx ON patient_identifier (system_id, value);
+
+-- Identifiers are stored as [system_id, value] pairs
+CREATE TABLE patient_history (
+    id varchar(64) REFERENCES patient(id),
+    version_id bigint,
+    last_updated timestamptz NOT NULL,
+    identifiers jsonb NOT NULL,
+    merged_into varchar(64),
+    PRIMARY KEY (id, version_id)
+) PARTITION BY HASH (id);
+
+-- Partition count, e.g. PGOPTIONS='-c patient_index.partitions=64' when running this script
+DO $$
+DECLARE
+    partitions integer := coalesce(nullif(current_setting('patient_index.partitions', true), ''), '8')::integer;
+BEGIN
+    FOR i IN 0..partitions - 1 LOOP
+        EXECUTE format('CREATE TABLE patient_p%s PARTITION OF patient FOR VALUES WITH (MODULUS %s, REMAINDER %s)',
+            i, partitions, i);
+        EXECUTE format('CREATE TABLE patient_identifier_p%s PARTITION OF patient_identifier FOR VALUES WITH (MODULUS %s, REMAINDER %s)',
+            i, partitions, i);
+        EXECUTE format('CREATE TABLE patient_history_p%s PARTITION OF patient_history FOR VALUES WITH (MODULUS %s, REMAINDER %s)',
+            i, partitions, i);
+    END LOOP;
+END
+$$;
@@ -0,0 +1,14 @@
+ALTER TABLE patient ADD COLUMN version_id bigint NOT NULL DEFAULT 1;
+ALTER TABLE patient ALTER COLUMN version_id DROP DEFAULT;
+
+CREATE TABLE patient_history (
+    id varchar(64) REFERENCES patient(id),
+    version_id bigint,
+    last_updated timestamptz NOT NULL,
+    identifiers jsonb NOT NULL,
+    merged_into varchar(64),
+    PRIMARY KEY (id, version_id)
+);
+
+INSERT INTO patient_history (id, version_id, last_updated, identifiers, merged_into)
+SELECT id, version_id, last_updated, identifiers, merged_into FROM patient;
@@ -0,0 +1,14 @@
+WITH RECURSIVE chain (origin, id, merged_into) AS (
+    SELECT id, id, merged_into FROM patient WHERE merged_into IS NOT NULL
+    UNION ALL
+    SELECT chain.origin, patient.id, patient.merged_into
+    FROM patient JOIN chain ON patient.id = chain.merged_into
+), compressed AS (
+    UPDATE patient
+    SET merged_into = chain.id, last_updated = now(), version_id = patient.version_id + 1
+    FROM chain
+    WHERE patient.id = chain.origin AND chain.merged_into IS NULL AND patient.merged_into <> chain.id
+    RETURNING patient.*
+)
+INSERT INTO patient_history (id, version_id, last_updated, identifiers, merged_into)
+SELECT id, version_id, last_updated, identifiers, merged_into FROM compressed;
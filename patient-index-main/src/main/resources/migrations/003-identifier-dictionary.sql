@@ -0,0 +1,37 @@
+CREATE TABLE identifier_system (
+    id serial PRIMARY KEY,
+    system text NOT NULL UNIQUE
+);
+
+CREATE TABLE patient_identifier (
+    patient_id varchar(64) REFERENCES patient(id),
+    ord smallint,
+    system_id integer NOT NULL REFERENCES identifier_system(id),
+    value text NOT NULL,
+    PRIMARY KEY (patient_id, ord)
+);
+
+INSERT INTO identifier_system (system)
+SELECT DISTINCT identifier->>'system'
+FROM (
+    SELECT identifiers FROM patient
+    UNION ALL
+    SELECT identifiers FROM patient_history
+) AS source, jsonb_array_elements(source.identifiers) AS identifier;
+
+INSERT INTO patient_identifier (patient_id, ord, system_id, value)
+SELECT patient.id, identifier.ord - 1, identifier_system.id, identifier.value->>'value'
+FROM patient
+CROSS JOIN LATERAL jsonb_array_elements(patient.identifiers) WITH ORDINALITY AS identifier (value, ord)
+JOIN identifier_system ON identifier_system.system = identifier.value->>'system';
+
+CREATE INDEX patient_identifier_system_id_value_idx ON patient_identifier (system_id, value);
+
+UPDATE patient_history
+SET identifiers = coalesce((
+    SELECT jsonb_agg(jsonb_build_array(identifier_system.id, identifier.value->>'value') ORDER BY identifier.ord)
+    FROM jsonb_array_elements(patient_history.identifiers) WITH ORDINALITY AS identifier (value, ord)
+    JOIN identifier_system ON identifier_system.system = identifier.value->>'system'
+), '[]'::jsonb);
+
+ALTER TABLE patient DROP COLUMN identifiers;
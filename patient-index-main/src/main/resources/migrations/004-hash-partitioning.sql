@@ -0,0 +1,74 @@
+BEGIN;
+
+ALTER TABLE patient_history RENAME TO patient_history_unpartitioned;
+ALTER INDEX patient_history_pkey RENAME TO patient_history_unpartitioned_pkey;
+ALTER TABLE patient_identifier RENAME TO patient_identifier_unpartitioned;
+ALTER INDEX patient_identifier_pkey RENAME TO patient_identifier_unpartitioned_pkey;
+ALTER INDEX patient_identifier_system_id_value_idx RENAME TO patient_identifier_unpartitioned_system_id_value_idx;
+ALTER TABLE patient RENAME TO patient_unpartitioned;
+ALTER INDEX patient_pkey RENAME TO patient_unpartitioned_pkey;
+
+-- Frees the constraint names for the partitioned tables
+ALTER TABLE patient_history_unpartitioned DROP CONSTRAINT patient_history_id_fkey;
+ALTER TABLE patient_identifier_unpartitioned
+    DROP CONSTRAINT patient_identifier_patient_id_fkey,
+    DROP CONSTRAINT patient_identifier_system_id_fkey;
+ALTER TABLE patient_unpartitioned DROP CONSTRAINT patient_merged_into_fkey;
+
+CREATE TABLE patient (
+    id varchar(64) PRIMARY KEY,
+    last_updated timestamptz NOT NULL,
+    merged_into varchar(64) REFERENCES patient(id),
+    version_id bigint NOT NULL
+) PARTITION BY HASH (id);
+
+CREATE TABLE patient_identifier (
+    patient_id varchar(64) REFERENCES patient(id),
+    ord smallint,
+    system_id integer NOT NULL REFERENCES identifier_system(id),
+    value text NOT NULL,
+    PRIMARY KEY (patient_id, ord)
+) PARTITION BY HASH (patient_id);
+
+CREATE INDEX patient_identifier_system_id_value_idx ON patient_identifier (system_id, value);
+
+-- Identifiers are stored as [system_id, value] pairs
+CREATE TABLE patient_history (
+    id varchar(64) REFERENCES patient(id),
+    version_id bigint,
+    last_updated timestamptz NOT NULL,
+    identifiers jsonb NOT NULL,
+    merged_into varchar(64),
+    PRIMARY KEY (id, version_id)
+) PARTITION BY HASH (id);
+
+-- Partition count, e.g. PGOPTIONS='-c patient_index.partitions=64' when running this script
+DO $$
+DECLARE
+    partitions integer := coalesce(nullif(current_setting('patient_index.partitions', true), ''), '8')::integer;
+BEGIN
+    FOR i IN 0..partitions - 1 LOOP
+        EXECUTE format('CREATE TABLE patient_p%s PARTITION OF patient FOR VALUES WITH (MODULUS %s, REMAINDER %s)',
+            i, partitions, i);
+        EXECUTE format('CREATE TABLE patient_identifier_p%s PARTITION OF patient_identifier FOR VALUES WITH (MODULUS %s, REMAINDER %s)',
+            i, partitions, i);
+        EXECUTE format('CREATE TABLE patient_history_p%s PARTITION OF patient_history FOR VALUES WITH (MODULUS %s, REMAINDER %s)',
+            i, partitions, i);
+    END LOOP;
+END
+$$;
+
+INSERT INTO patient (id, last_updated, merged_into, version_id)
+SELECT id, last_updated, merged_into, version_id FROM patient_unpartitioned;
+
+INSERT INTO patient_identifier (patient_id, ord, system_id, value)
+SELECT patient_id, ord, system_id, value FROM patient_identifier_unpartitioned;
+
+INSERT INTO patient_history (id, version_id, last_updated, identifiers, merged_into)
+SELECT id, version_id, last_updated, identifiers, merged_into FROM patient_history_unpartitioned;
+
+DROP TABLE patient_history_unpartitioned;
+DROP TABLE patient_identifier_unpartitioned;
+DROP TABLE patient_unpartitioned;
+
+COMMIT;
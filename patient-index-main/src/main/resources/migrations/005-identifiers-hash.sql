@@ -0,0 +1,2 @@
+-- Stays NULL until the next update of a patient, which is then never skipped
+ALTER TABLE patient ADD COLUMN identifiers_hash bytea;
@@ -0,0 +1,2 @@
+-- Lets read models catch up on patients updated since a point in time
+CREATE INDEX patient_last_updated_idx ON patient (last_updated);
@@ -170,6 +170,218 @@ test.describe("create, update, and search", () => {
         expect(foundPatientData.identifier).toEqual(identifiers);
     });
     
+    test('should create two patients and find both with _id', async ({ request }) => {
+        const firstIdentifier = randomIdentifier();
+        const firstPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: [firstIdentifier],
+            }
+        });
+        expect(firstPatient.ok()).toBeTruthy();
+
+        const secondIdentifier = randomIdentifier();
+        const secondPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: [secondIdentifier],
+            }
+        });
+        expect(secondPatient.ok()).toBeTruthy();
+
+        const firstPatientData = await firstPatient.json();
+        const secondPatientData = await secondPatient.json();
+
+        const foundBundle = await request.get(`Patient?_id=${firstPatientData.id},${secondPatientData.id}`);
+        expect(foundBundle.ok()).toBeTruthy();
+
+        const foundBundleData = await foundBundle.json();
+        expect(foundBundleData.entry).toBeDefined();
+        expect(foundBundleData.entry.length).toBe(2);
+
+        expect(foundBundleData.entry[0].resource.id).toBe(firstPatientData.id);
+        expect(foundBundleData.entry[0].resource.identifier).toEqual([firstIdentifier]);
+        expect(foundBundleData.entry[1].resource.id).toBe(secondPatientData.id);
+        expect(foundBundleData.entry[1].resource.identifier).toEqual([secondIdentifier]);
+    });
+
+    test('should create two patients and find both with identifier compressed', async ({ request }) => {
+        const identifier = randomIdentifier();
+
+        for (let i = 0; i < 2; ++i) {
+            const newPatient = await request.post("Patient", {
+                data: {
+                    resourceType: "Patient",
+                    identifier: [identifier, randomIdentifier()],
+                }
+            });
+            expect(newPatient.ok()).toBeTruthy();
+        }
+
+        const foundBundle = await request.get(
+            `Patient?identifier=${encodeURIComponent(`${identifier.system}|${identifier.value}`)}`, {
+                headers: {
+                    "Accept-Encoding": "deflate, gzip;q=0.5",
+                },
+            });
+        expect(foundBundle.ok()).toBeTruthy();
+        expect(foundBundle.headers()["content-encoding"]).toBe("deflate");
+
+        const foundBundleData = await foundBundle.json();
+        expect(foundBundleData.resourceType).toBe("Bundle");
+        expect(foundBundleData.total).toBe(2);
+        expect(foundBundleData.entry.length).toBe(2);
+        for (const entry of foundBundleData.entry) {
+            expect(entry.resource.identifier).toContainEqual(identifier);
+        }
+    });
+
+    test('should create patient and find it in snapshot', async ({ request }) => {
+        const identifier = randomIdentifier();
+
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: [identifier],
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+
+        const snapshot = await request.get("Patient/$snapshot");
+        expect(snapshot.ok()).toBeTruthy();
+        expect(snapshot.headers()["content-type"]).toContain("application/fhir+ndjson");
+
+        const snapshotPatients = (await snapshot.text())
+            .split("\n")
+            .filter(line => line.length > 0)
+            .map(line => JSON.parse(line));
+
+        const foundPatientData = snapshotPatients.find(patient => patient.id === newPatientData.id);
+        expect(foundPatientData).toBeDefined();
+        expect(foundPatientData.identifier).toEqual([identifier]);
+    });
+
+    test('should create patient and find it only in snapshot since before its update', async ({ request }) => {
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: [randomIdentifier()],
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+        const lastUpdated = new Date(newPatientData.meta.lastUpdated);
+
+        const findInSnapshot = async (since: Date) => {
+            const snapshot = await request.get("Patient/$snapshot", {
+                params: { since: since.toISOString() }
+            });
+            expect(snapshot.ok()).toBeTruthy();
+
+            return (await snapshot.text())
+                .split("\n")
+                .filter(line => line.length > 0)
+                .map(line => JSON.parse(line))
+                .find(patient => patient.id === newPatientData.id);
+        };
+
+        expect(await findInSnapshot(new Date(lastUpdated.getTime() - 1000))).toBeDefined();
+        expect(await findInSnapshot(new Date(lastUpdated.getTime() + 1000))).toBeUndefined();
+    });
+
+    test('should create patients and page through them in snapshot', async ({ request }) => {
+        const ids: string[] = [];
+        let since: Date | undefined;
+        for (let i = 0; i < 3; ++i) {
+            const newPatient = await request.post("Patient", {
+                data: {
+                    resourceType: "Patient",
+                    identifier: [randomIdentifier()],
+                }
+            });
+            expect(newPatient.ok()).toBeTruthy();
+
+            const newPatientData = await newPatient.json();
+            ids.push(newPatientData.id);
+            since ??= new Date(new Date(newPatientData.meta.lastUpdated).getTime() - 1000);
+        }
+
+        const pagedIds: string[] = [];
+        let params: { [key: string]: string | number } = { since: since!.toISOString(), count: 2 };
+        while (true) {
+            const page = await request.get("Patient/$snapshot", { params: params });
+            expect(page.ok()).toBeTruthy();
+
+            const pagePatients = (await page.text())
+                .split("\n")
+                .filter(line => line.length > 0)
+                .map(line => JSON.parse(line));
+            expect(pagePatients.length).toBeLessThanOrEqual(2);
+
+            pagedIds.push(...pagePatients.map(patient => patient.id));
+
+            const after = page.headers()["x-patient-index-snapshot-after"];
+            if (pagePatients.length < 2 || !after) {
+                break;
+            }
+
+            params = { after: after, count: 2 };
+        }
+
+        expect(new Set(pagedIds).size).toEqual(pagedIds.length);
+        for (const id of ids) {
+            expect(pagedIds).toContain(id);
+        }
+    });
+
+    test('should create patient and cross-reference its identifiers with $ihe-pix', async ({ request }) => {
+        const identifiers = [
+            randomIdentifier(),
+            randomIdentifier(),
+        ];
+
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: identifiers,
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+
+        const sourceIdentifier = `${identifiers[0].system}|${identifiers[0].value}`;
+
+        const allTargets = await request.get("Patient/$ihe-pix", {
+            params: { sourceIdentifier: sourceIdentifier }
+        });
+        expect(allTargets.ok()).toBeTruthy();
+
+        const allTargetsData = await allTargets.json();
+        expect(allTargetsData.resourceType).toBe("Parameters");
+        expect(allTargetsData.parameter.filter(p => p.name === "targetIdentifier").map(p => p.valueIdentifier))
+            .toEqual(identifiers);
+        expect(allTargetsData.parameter.filter(p => p.name === "targetId").map(p => p.valueReference.reference))
+            .toEqual([`Patient/${newPatientData.id}`]);
+
+        const oneTarget = await request.get("Patient/$ihe-pix", {
+            params: { sourceIdentifier: sourceIdentifier, targetSystem: identifiers[1].system }
+        });
+        expect(oneTarget.ok()).toBeTruthy();
+
+        const oneTargetData = await oneTarget.json();
+        expect(oneTargetData.parameter.filter(p => p.name === "targetIdentifier").map(p => p.valueIdentifier))
+            .toEqual([identifiers[1]]);
+
+        const unknown = await request.get("Patient/$ihe-pix", {
+            params: { sourceIdentifier: `${identifiers[0].system}|${randomUUID()}` }
+        });
+        expect(unknown.status()).toBe(404);
+    });
+
     test('should create patient with one identifier and add one', async ({ request }) => {
         const identifiers = [
             randomIdentifier(),
@@ -363,6 +575,139 @@ test.describe("merge", () => {
         // TODO Check linked reference
     });
 
+    test('should merge twice and link first source to final target', async ({ request }) => {
+        const patientIds: string[] = [];
+        for (let i = 0; i < 3; ++i)
+        {
+            const newPatient = await request.post("Patient", {
+                data: {
+                    resourceType: "Patient",
+                }
+            });
+            expect(newPatient.ok()).toBeTruthy();
+
+            patientIds.push((await newPatient.json()).id);
+        }
+
+        for (let i = 0; i < 2; ++i)
+        {
+            const mergePatient = await request.post("Patient/$merge", {
+                data: {
+                    resourceType: "Parameters",
+                    parameter: [
+                        {
+                            name: "source-patient",
+                            valueReference: {
+                                reference: `Patient/${patientIds[i]}`
+                            }
+                        },
+                        {
+                            name: "target-patient",
+                            valueReference: {
+                                reference: `Patient/${patientIds[i + 1]}`
+                            }
+                        },
+                    ],
+                },
+            });
+            expect(mergePatient.ok()).toBeTruthy();
+        }
+
+        const foundSourcePatient = await request.get(`Patient/${patientIds[0]}`);
+        expect(foundSourcePatient.ok()).toBeTruthy();
+
+        const foundSourcePatientData = await foundSourcePatient.json();
+        expect(foundSourcePatientData.active).toBeFalsy();
+        expect(foundSourcePatientData.link.length).toBe(1);
+        expect(foundSourcePatientData.link[0].other.reference).toBe(`Patient/${patientIds[2]}`);
+    });
+
+    test('should create four patients and merge two pairs in one batch', async ({ request }) => {
+        const patientIds: string[] = [];
+        for (let i = 0; i < 4; ++i)
+        {
+            const newPatient = await request.post("Patient", {
+                data: {
+                    resourceType: "Patient",
+                }
+            });
+            expect(newPatient.ok()).toBeTruthy();
+
+            patientIds.push((await newPatient.json()).id);
+        }
+
+        const mergePatients = await request.post("Patient/$merge-batch", {
+            data: {
+                resourceType: "Parameters",
+                parameter: [0, 2].flatMap(i => [
+                    {
+                        name: "source-patient",
+                        valueReference: {
+                            reference: `Patient/${patientIds[i]}`
+                        }
+                    },
+                    {
+                        name: "target-patient",
+                        valueReference: {
+                            reference: `Patient/${patientIds[i + 1]}`
+                        }
+                    },
+                ]),
+            },
+        });
+        expect(mergePatients.ok()).toBeTruthy();
+
+        for (const i of [0, 2])
+        {
+            const foundSourcePatient = await request.get(`Patient/${patientIds[i]}`);
+            expect(foundSourcePatient.ok()).toBeTruthy();
+
+            const foundSourcePatientData = await foundSourcePatient.json();
+            expect(foundSourcePatientData.active).toBeFalsy();
+            expect(foundSourcePatientData.link[0].other.reference).toBe(`Patient/${patientIds[i + 1]}`);
+        }
+    });
+
+    test('should fail batch merge with chained pairs and merge nothing', async ({ request }) => {
+        const patientIds: string[] = [];
+        for (let i = 0; i < 3; ++i)
+        {
+            const newPatient = await request.post("Patient", {
+                data: {
+                    resourceType: "Patient",
+                }
+            });
+            expect(newPatient.ok()).toBeTruthy();
+
+            patientIds.push((await newPatient.json()).id);
+        }
+
+        const mergePatients = await request.post("Patient/$merge-batch", {
+            data: {
+                resourceType: "Parameters",
+                parameter: [0, 1].flatMap(i => [
+                    {
+                        name: "source-patient",
+                        valueReference: {
+                            reference: `Patient/${patientIds[i]}`
+                        }
+                    },
+                    {
+                        name: "target-patient",
+                        valueReference: {
+                            reference: `Patient/${patientIds[i + 1]}`
+                        }
+                    },
+                ]),
+            },
+        });
+        expect(mergePatients.ok()).toBeFalsy();
+
+        const foundSourcePatient = await request.get(`Patient/${patientIds[0]}`);
+        expect(foundSourcePatient.ok()).toBeTruthy();
+        expect((await foundSourcePatient.json()).active).toBeTruthy();
+    });
+
     test('should create target patient and fail due to invalid source patient', async ({ request }) => {
         const newTargetPatient = await request.post("Patient", {
             data: {
@@ -429,3 +774,250 @@ test.describe("merge", () => {
         expect(mergePatient.ok()).toBeFalsy();
     });
 });
+
+test.describe("versioning", () => {
+    test('should create patient, update, and read both versions', async ({ request }) => {
+        const identifiers = [
+            randomIdentifier(),
+        ]
+
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: identifiers,
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+        expect(newPatientData.meta.versionId).toBe("1");
+
+        const changedPatient = await request.put(`Patient/${newPatientData.id}`, {
+            data: {
+                resourceType: "Patient",
+                id: newPatientData.id,
+                identifier: [...identifiers, randomIdentifier()],
+            }
+        });
+        expect(changedPatient.ok()).toBeTruthy();
+
+        const changedPatientData = await changedPatient.json();
+        expect(changedPatientData.meta.versionId).toBe("2");
+
+        const foundFirstVersion = await request.get(`Patient/${newPatientData.id}/_history/1`);
+        expect(foundFirstVersion.ok()).toBeTruthy();
+
+        const foundFirstVersionData = await foundFirstVersion.json();
+        expect(foundFirstVersionData.meta.versionId).toBe("1");
+        expect(foundFirstVersionData.identifier).toEqual(identifiers);
+
+        const foundSecondVersion = await request.get(`Patient/${newPatientData.id}/_history/2`);
+        expect(foundSecondVersion.ok()).toBeTruthy();
+
+        const foundSecondVersionData = await foundSecondVersion.json();
+        expect(foundSecondVersionData.meta.versionId).toBe("2");
+        expect(foundSecondVersionData.identifier.length).toBe(2);
+    });
+
+    test('should create patient and update with matching version', async ({ request }) => {
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+
+        const changedPatient = await request.put(`Patient/${newPatientData.id}`, {
+            headers: {
+                "If-Match": `W/"${newPatientData.meta.versionId}"`,
+            },
+            data: {
+                resourceType: "Patient",
+                id: newPatientData.id,
+                identifier: [
+                    randomIdentifier(),
+                ],
+            }
+        });
+        expect(changedPatient.ok()).toBeTruthy();
+    });
+
+    test('should create patient and fail to update with outdated version', async ({ request }) => {
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+
+        const changedPatient = await request.put(`Patient/${newPatientData.id}`, {
+            data: {
+                resourceType: "Patient",
+                id: newPatientData.id,
+                identifier: [
+                    randomIdentifier(),
+                ],
+            }
+        });
+        expect(changedPatient.ok()).toBeTruthy();
+
+        const conflictingPatient = await request.put(`Patient/${newPatientData.id}`, {
+            headers: {
+                "If-Match": `W/"${newPatientData.meta.versionId}"`,
+            },
+            data: {
+                resourceType: "Patient",
+                id: newPatientData.id,
+                identifier: [
+                    randomIdentifier(),
+                ],
+            }
+        });
+        expect(conflictingPatient.status()).toBe(412);
+    });
+
+    test('should create patient and revalidate read with ETag', async ({ request }) => {
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: [
+                    randomIdentifier(),
+                ],
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+
+        const foundPatient = await request.get(`Patient/${newPatientData.id}`);
+        expect(foundPatient.ok()).toBeTruthy();
+
+        const etag = foundPatient.headers()["etag"];
+        expect(etag).toBe(`W/"${newPatientData.meta.versionId}"`);
+
+        const unmodifiedPatient = await request.get(`Patient/${newPatientData.id}`, {
+            headers: {
+                "If-None-Match": etag,
+            },
+        });
+        expect(unmodifiedPatient.status()).toBe(304);
+
+        const changedPatient = await request.put(`Patient/${newPatientData.id}`, {
+            data: {
+                resourceType: "Patient",
+                id: newPatientData.id,
+                identifier: [
+                    randomIdentifier(),
+                ],
+            }
+        });
+        expect(changedPatient.ok()).toBeTruthy();
+
+        const modifiedPatient = await request.get(`Patient/${newPatientData.id}`, {
+            headers: {
+                "If-None-Match": etag,
+            },
+        });
+        expect(modifiedPatient.status()).toBe(200);
+
+        const modifiedPatientData = await modifiedPatient.json();
+        expect(modifiedPatientData.meta.versionId).toBe("2");
+    });
+
+    test('should create patient and keep version when updating with reordered identifiers', async ({ request }) => {
+        const identifiers = [
+            randomIdentifier(),
+            randomIdentifier(),
+        ]
+
+        const newPatient = await request.post("Patient", {
+            data: {
+                resourceType: "Patient",
+                identifier: identifiers,
+            }
+        });
+        expect(newPatient.ok()).toBeTruthy();
+
+        const newPatientData = await newPatient.json();
+
+        const unchangedPatient = await request.put(`Patient/${newPatientData.id}`, {
+            data: {
+                resourceType: "Patient",
+                id: newPatientData.id,
+                identifier: [...identifiers].reverse(),
+            }
+        });
+        expect(unchangedPatient.ok()).toBeTruthy();
+
+        const unchangedPatientData = await unchangedPatient.json();
+        expect(unchangedPatientData.meta.versionId).toBe(newPatientData.meta.versionId);
+        expect(unchangedPatientData.identifier).toEqual(identifiers);
+    });
+});
+
+test.describe("conditional", () => {
+    test('should create patient once with If-None-Exist', async ({ request }) => {
+        const identifier = randomIdentifier();
+        const condition = `identifier=${encodeURIComponent(`${identifier.system}|${identifier.value}`)}`;
+
+        const firstPatient = await request.post("Patient", {
+            headers: {
+                "If-None-Exist": condition,
+            },
+            data: {
+                resourceType: "Patient",
+                identifier: [identifier],
+            }
+        });
+        expect(firstPatient.status()).toBe(201);
+
+        const secondPatient = await request.post("Patient", {
+            headers: {
+                "If-None-Exist": condition,
+            },
+            data: {
+                resourceType: "Patient",
+                identifier: [identifier, randomIdentifier()],
+            }
+        });
+        expect(secondPatient.status()).toBe(200);
+
+        const firstPatientData = await firstPatient.json();
+        const secondPatientData = await secondPatient.json();
+        expect(secondPatientData.id).toBe(firstPatientData.id);
+        expect(secondPatientData.identifier).toEqual([identifier]);
+    });
+
+    test('should create patient and update it by identifier', async ({ request }) => {
+        const identifier = randomIdentifier();
+        const condition = `identifier=${encodeURIComponent(`${identifier.system}|${identifier.value}`)}`;
+
+        const newPatient = await request.put(`Patient?${condition}`, {
+            data: {
+                resourceType: "Patient",
+                identifier: [identifier],
+            }
+        });
+        expect(newPatient.status()).toBe(201);
+
+        const newPatientData = await newPatient.json();
+
+        const additionalIdentifier = randomIdentifier();
+        const changedPatient = await request.put(`Patient?${condition}`, {
+            data: {
+                resourceType: "Patient",
+                identifier: [identifier, additionalIdentifier],
+            }
+        });
+        expect(changedPatient.status()).toBe(200);
+
+        const changedPatientData = await changedPatient.json();
+        expect(changedPatientData.id).toBe(newPatientData.id);
+        expect(changedPatientData.meta.versionId).toBe("2");
+        expect(changedPatientData.identifier).toEqual([identifier, additionalIdentifier]);
+    });
+});
@@ -6,6 +6,7 @@ import org.springframework.context.annotation.Configuration;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
 
 @Configuration
 public class FhirConfig
@@ -22,6 +23,12 @@ public class FhirConfig
         return context;
     }
 
+    @Bean
+    public ReusableJsonParser jsonParser(FhirContext context)
+    {
+        return new ReusableJsonParser(context);
+    }
+
     @Bean
     public IGenericClient fhirClient(
         FhirContext context, PatientIndexConfig config)
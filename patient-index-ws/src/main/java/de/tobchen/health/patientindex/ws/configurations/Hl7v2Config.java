@@ -0,0 +1,31 @@
+package de.tobchen.health.patientindex.ws.configurations;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.parser.CanonicalModelClassFactory;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+
+@Configuration
+public class Hl7v2Config
+{
+    /**
+     * Parses messages of any version into v2.5 structures, the version PIX queries are defined in.
+     */
+    @Bean
+    public HapiContext hl7v2Context()
+    {
+        var context = new DefaultHapiContext(new CanonicalModelClassFactory("2.5"));
+        context.setValidationContext(ValidationContextFactory.noValidation());
+        return context;
+    }
+
+    @Bean
+    public Parser hl7v2Parser(HapiContext hl7v2Context)
+    {
+        return hl7v2Context.getPipeParser();
+    }
+}
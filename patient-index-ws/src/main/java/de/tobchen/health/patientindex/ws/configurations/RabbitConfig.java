@@ -0,0 +1,53 @@
+package de.tobchen.health.patientindex.ws.configurations;
+
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.actuate.amqp.RabbitHealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class RabbitConfig
+{
+    @Bean
+    public TopicExchange topic()
+    {
+        return new TopicExchange("patient-index.resource");
+    }
+
+    /**
+     * Every instance keeps its own read model, so it needs its own queue. The queue is only declared once a
+     * connection is opened, i.e. with the cross-reference read model or filter enabled.
+     */
+    @Bean
+    public Queue crossReferenceQueue()
+    {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding binding(TopicExchange topic, Queue crossReferenceQueue)
+    {
+        return BindingBuilder
+            .bind(crossReferenceQueue)
+            .to(topic)
+            .with("Patient");
+    }
+
+    /**
+     * Replaces Boot's broker health check (disabled in application.yaml), so the broker is only checked if the
+     * cross-reference read model or filter uses it.
+     */
+    @Bean
+    @ConditionalOnExpression("${patient-index.cross-reference.enabled:false}"
+        + " or ${patient-index.cross-reference.filter.enabled:false}")
+    public RabbitHealthIndicator rabbitHealthIndicator(RabbitTemplate rabbitTemplate)
+    {
+        return new RabbitHealthIndicator(rabbitTemplate);
+    }
+}
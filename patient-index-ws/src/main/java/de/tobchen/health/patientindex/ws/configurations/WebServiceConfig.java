@@ -1,19 +1,55 @@
 package de.tobchen.health.patientindex.ws.configurations;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.ws.config.annotation.EnableWs;
 import org.springframework.ws.config.annotation.WsConfigurerAdapter;
+import org.springframework.ws.server.EndpointInterceptor;
 import org.springframework.ws.soap.SoapVersion;
 import org.springframework.ws.soap.saaj.SaajSoapMessageFactory;
 import org.springframework.ws.transport.http.MessageDispatcherServlet;
+import org.xml.sax.SAXException;
+
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.ws.interceptors.SchemaValidatingInterceptor;
+import io.opentelemetry.api.OpenTelemetry;
 
 @EnableWs
 @Configuration
 public class WebServiceConfig extends WsConfigurerAdapter
 {
+    private final OpenTelemetry openTelemetry;
+
+    private final boolean validationEnabled;
+
+    public WebServiceConfig(OpenTelemetry openTelemetry, PatientIndexConfig config)
+    {
+        this.openTelemetry = openTelemetry;
+
+        this.validationEnabled = config.validation().enabled();
+    }
+
+    @Override
+    public void addInterceptors(List<EndpointInterceptor> interceptors)
+    {
+        if (validationEnabled)
+        {
+            try
+            {
+                interceptors.add(new SchemaValidatingInterceptor(openTelemetry));
+            }
+            catch (IOException | SAXException e)
+            {
+                throw new IllegalStateException("Cannot compile PIX query schema", e);
+            }
+        }
+    }
+
     @Bean
     public ServletRegistrationBean<MessageDispatcherServlet> messageDispatcherServlet(
         ApplicationContext context)
@@ -0,0 +1,172 @@
+package de.tobchen.health.patientindex.ws.endpoints;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.hl7v2.AcknowledgmentCode;
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.model.v25.message.QBP_Q21;
+import ca.uhn.hl7v2.model.v25.message.RSP_K23;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import de.tobchen.health.patientindex.ws.services.QueryService;
+import de.tobchen.health.patientindex.ws.util.Hl7v2PixQueryResponseBuilder;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.trace.Tracer;
+
+/**
+ * Answers HL7v2 PIX queries (QBP^Q23) like {@link PixQueryEndpoint} answers HL7v3 ones.
+ */
+@Component
+public class Hl7v2PixQueryEndpoint
+{
+    private static final AttributeKey<String> STATUS = AttributeKey.stringKey("status");
+
+    private final Logger logger = LoggerFactory.getLogger(Hl7v2PixQueryEndpoint.class);
+
+    private final Tracer tracer;
+    private final LongCounter queryCounter;
+
+    private final Parser parser;
+
+    private final QueryService queryService;
+
+    public Hl7v2PixQueryEndpoint(OpenTelemetry openTelemetry, Parser hl7v2Parser, QueryService queryService)
+    {
+        this.tracer = openTelemetry.getTracer(Hl7v2PixQueryEndpoint.class.getName());
+
+        var meter = openTelemetry.getMeter(Hl7v2PixQueryEndpoint.class.getName());
+        this.queryCounter = meter.counterBuilder("patient_index.ws.mllp.queries")
+            .setDescription("HL7v2 PIX queries answered, by query response status")
+            .build();
+
+        this.parser = hl7v2Parser;
+
+        this.queryService = queryService;
+    }
+
+    /**
+     * @return The encoded response, or null if the request is no HL7v2 message at all
+     */
+    public @Nullable String handle(String request)
+    {
+        var span = tracer.spanBuilder("Hl7v2PixQueryEndpoint.handle").startSpan();
+
+        try (var scope = span.makeCurrent())
+        {
+            Message message;
+            try
+            {
+                message = parser.parse(request);
+            }
+            catch (HL7Exception e)
+            {
+                logger.warn("Cannot parse HL7v2 message", e);
+                span.recordException(e);
+                return null;
+            }
+
+            Message response;
+            if (message instanceof QBP_Q21 query
+                && "Q23".equals(query.getMSH().getMessageType().getTriggerEvent().getValue()))
+            {
+                var queryResponse = query(query);
+                queryCounter.add(1, Attributes.of(STATUS,
+                    queryResponse.getQAK().getQueryResponseStatus().getValue()));
+                response = queryResponse;
+            }
+            else
+            {
+                response = message.generateACK(AcknowledgmentCode.AR,
+                    new HL7Exception("Only PIX queries (QBP^Q23) are supported", ErrorCode.UNSUPPORTED_MESSAGE_TYPE));
+            }
+
+            return parser.encode(response);
+        }
+        catch (HL7Exception | IOException e)
+        {
+            logger.error("Cannot create HL7v2 response", e);
+            span.recordException(e);
+            return null;
+        }
+        catch (Throwable t)
+        {
+            span.recordException(t);
+            throw t;
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+
+    private RSP_K23 query(QBP_Q21 query) throws HL7Exception
+    {
+        var builder = new Hl7v2PixQueryResponseBuilder(query);
+        var qpd = query.getQPD();
+
+        // QPD-3 is the queried identifier as CX
+        var patientIdentifier = qpd.getField(3, 0);
+        var idValue = Terser.getPrimitive(patientIdentifier, 1, 1).getValue();
+        var idSystem = Terser.getPrimitive(patientIdentifier, 4, 2).getValue();
+
+        if (idSystem == null || idValue == null)
+        {
+            return builder.buildWithResult(null);
+        }
+
+        Map<String, Set<String>> systemValuesMap;
+        try
+        {
+            systemValuesMap = queryService.findIdentifiers(idSystem, idValue);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Cannot query identifiers", e);
+            return builder.buildWithError("AE", 0, "207", "Application internal error");
+        }
+
+        if (systemValuesMap.isEmpty())
+        {
+            return builder.buildWithResult(null);
+        }
+
+        var queriedValues = systemValuesMap.get(idSystem);
+        if (queriedValues != null)
+        {
+            queriedValues.remove(idValue);
+        }
+
+        // QPD-4 are the domains to be returned as CX with only an assigning authority
+        var whiteList = new HashSet<String>();
+        for (var domain : qpd.numFields() >= 4 ? qpd.getField(4) : new Type[0])
+        {
+            var oid = Terser.getPrimitive(domain, 4, 2).getValue();
+            if (oid != null)
+            {
+                whiteList.add(oid);
+            }
+        }
+
+        if (!whiteList.isEmpty())
+        {
+            systemValuesMap.keySet().retainAll(whiteList);
+        }
+
+        return builder.buildWithResult(systemValuesMap);
+    }
+}
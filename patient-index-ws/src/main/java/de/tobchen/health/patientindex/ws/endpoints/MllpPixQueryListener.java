@@ -0,0 +1,592 @@
+package de.tobchen.health.patientindex.ws.endpoints;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.LongUpDownCounter;
+
+/**
+ * Accepts HL7v2 PIX queries over MLLP, if enabled. A single selector thread serves all connections without
+ * blocking, queries are answered by {@link Hl7v2PixQueryEndpoint} on virtual threads. Clients may send further
+ * queries before receiving responses (up to a limit per connection), responses are sent in request order.
+ */
+@Component
+public class MllpPixQueryListener implements SmartLifecycle
+{
+    // Framing as in the feed's MllpSerializer
+    private static final byte START_BLOCK_CHAR = 0x0b;
+    private static final byte END_BLOCK_CHAR = 0x1c;
+    private static final byte CARRIAGE_RETURN = 0x0d;
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(MllpPixQueryListener.class);
+
+    private final boolean enabled;
+    private final int port;
+    private final int maxMessageSize;
+    private final int maxPipelinedRequests;
+
+    private final Hl7v2PixQueryEndpoint endpoint;
+
+    private final LongUpDownCounter connectionCounter;
+    private final DoubleHistogram throughputHistogram;
+    private final LongHistogram requestsHistogram;
+    private final DoubleHistogram durationHistogram;
+
+    // Only used by the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+
+    // Connections with completed responses, to be sent by the selector thread
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+
+    @Nullable
+    private Selector selector = null;
+    @Nullable
+    private ExecutorService workers = null;
+    @Nullable
+    private Thread selectorThread = null;
+    private volatile boolean running = false;
+
+    public MllpPixQueryListener(OpenTelemetry openTelemetry, Hl7v2PixQueryEndpoint endpoint,
+        PatientIndexConfig config)
+    {
+        var mllpConfig = config.mllp();
+        this.enabled = mllpConfig.enabled();
+        this.port = mllpConfig.port();
+        this.maxMessageSize = mllpConfig.maxMessageSize();
+        this.maxPipelinedRequests = mllpConfig.maxPipelinedRequests();
+
+        this.endpoint = endpoint;
+
+        var meter = openTelemetry.getMeter(MllpPixQueryListener.class.getName());
+        this.connectionCounter = meter.upDownCounterBuilder("patient_index.ws.mllp.connections")
+            .setDescription("Open MLLP connections")
+            .build();
+        this.throughputHistogram = meter.histogramBuilder("patient_index.ws.mllp.connection.throughput")
+            .setDescription("Requests per second of each MLLP connection, sampled periodically and on close")
+            .setUnit("{request}/s")
+            .build();
+        this.requestsHistogram = meter.histogramBuilder("patient_index.ws.mllp.connection.requests")
+            .setDescription("Requests received on an MLLP connection until it closed")
+            .setUnit("{request}")
+            .ofLongs()
+            .build();
+        this.durationHistogram = meter.histogramBuilder("patient_index.ws.mllp.request.duration")
+            .setDescription("Time from receiving an MLLP request until its response is ready to be sent")
+            .setUnit("ms")
+            .build();
+    }
+
+    @Override
+    public void start()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        try
+        {
+            var openedSelector = Selector.open();
+            var serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.register(openedSelector, SelectionKey.OP_ACCEPT);
+
+            selector = openedSelector;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Cannot listen for MLLP on port " + port, e);
+        }
+
+        workers = Executors.newVirtualThreadPerTaskExecutor();
+
+        running = true;
+        selectorThread = Thread.ofPlatform().name("mllp-selector").start(this::run);
+
+        logger.info("Listening for MLLP on port {}", port);
+    }
+
+    @Override
+    public void stop()
+    {
+        running = false;
+
+        var openedSelector = selector;
+        if (openedSelector != null)
+        {
+            openedSelector.wakeup();
+        }
+
+        var thread = selectorThread;
+        if (thread != null)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            selectorThread = null;
+        }
+
+        var executor = workers;
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            workers = null;
+        }
+
+        selector = null;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    private void run()
+    {
+        var openedSelector = selector;
+        if (openedSelector == null)
+        {
+            return;
+        }
+
+        var lastSample = System.currentTimeMillis();
+
+        try
+        {
+            while (running)
+            {
+                openedSelector.select(SAMPLE_INTERVAL_MILLIS);
+
+                Connection connection;
+                while ((connection = completed.poll()) != null)
+                {
+                    connection.sendCompleted();
+                }
+
+                var selectedKeys = openedSelector.selectedKeys();
+                for (var key : selectedKeys)
+                {
+                    if (key.isValid() && key.isAcceptable())
+                    {
+                        accept(openedSelector, (ServerSocketChannel) key.channel());
+                    }
+                    else if (key.attachment() instanceof Connection selected)
+                    {
+                        selected.handle(key);
+                    }
+                }
+                selectedKeys.clear();
+
+                var now = System.currentTimeMillis();
+                if (now - lastSample >= SAMPLE_INTERVAL_MILLIS)
+                {
+                    for (var key : openedSelector.keys())
+                    {
+                        if (key.isValid() && key.attachment() instanceof Connection open)
+                        {
+                            open.sample(now);
+                        }
+                    }
+                    lastSample = now;
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Connections handle their own failures, so this is the selector or server socket failing
+            logger.error("MLLP listener failed", e);
+        }
+        finally
+        {
+            for (var key : openedSelector.keys())
+            {
+                if (key.attachment() instanceof Connection open)
+                {
+                    open.close();
+                }
+                else
+                {
+                    closeQuietly(key.channel());
+                }
+            }
+            closeQuietly(openedSelector);
+        }
+    }
+
+    private void accept(Selector openedSelector, ServerSocketChannel serverChannel)
+    {
+        try
+        {
+            var channel = serverChannel.accept();
+            if (channel != null)
+            {
+                channel.configureBlocking(false);
+                var connection = new Connection(channel);
+                connection.key = channel.register(openedSelector, SelectionKey.OP_READ, connection);
+                connectionCounter.add(1);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.warn("Cannot accept MLLP connection", e);
+        }
+    }
+
+    private static byte[] frame(String response)
+    {
+        var bytes = response.getBytes(StandardCharsets.UTF_8);
+
+        var framed = new byte[bytes.length + 3];
+        framed[0] = START_BLOCK_CHAR;
+        System.arraycopy(bytes, 0, framed, 1, bytes.length);
+        framed[framed.length - 2] = END_BLOCK_CHAR;
+        framed[framed.length - 1] = CARRIAGE_RETURN;
+        return framed;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (Exception e)
+        {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * A client connection, only used by the selector thread except for queueing completed responses.
+     */
+    private class Connection
+    {
+        private final SocketChannel channel;
+        @Nullable
+        private SelectionKey key = null;
+
+        // Message being read, without its start and end block characters
+        private byte[] message = new byte[1024];
+        private int messageLength = 0;
+        private boolean inMessage = false;
+        private boolean afterEndBlock = false;
+
+        // Responses in request order, null for requests that were no HL7v2 message
+        private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+
+        // Bytes read but not parsed yet, as the limit of pending requests was reached
+        @Nullable
+        private ByteBuffer unread = null;
+
+        private boolean inputClosed = false;
+        private boolean closed = false;
+
+        private final long openedAt = System.currentTimeMillis();
+        private long requests = 0;
+        private long sampledAt = openedAt;
+        private long sampledRequests = 0;
+
+        private Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void handle(SelectionKey selectedKey)
+        {
+            try
+            {
+                if (selectedKey.isValid() && selectedKey.isReadable())
+                {
+                    read();
+                }
+                if (selectedKey.isValid() && selectedKey.isWritable())
+                {
+                    write();
+                }
+            }
+            catch (IOException e)
+            {
+                logger.debug("Closing MLLP connection", e);
+                close();
+            }
+            catch (RuntimeException e)
+            {
+                // Only this connection fails, the selector keeps serving the others
+                logger.warn("Closing failed MLLP connection", e);
+                close();
+            }
+        }
+
+        private void read() throws IOException
+        {
+            readBuffer.clear();
+            var count = channel.read(readBuffer);
+            if (count < 0)
+            {
+                // Responses to requests already read are still sent
+                inputClosed = true;
+                update();
+                return;
+            }
+
+            readBuffer.flip();
+            parse(readBuffer);
+            if (readBuffer.hasRemaining())
+            {
+                // The read buffer is shared, so bytes left at the limit are kept until responses drain
+                unread = ByteBuffer.allocate(readBuffer.remaining()).put(readBuffer).flip();
+            }
+
+            update();
+        }
+
+        /**
+         * Parses and dispatches requests until the input is consumed or the limit of pending requests is reached.
+         */
+        private void parse(ByteBuffer input) throws IOException
+        {
+            while (input.hasRemaining() && pending.size() < maxPipelinedRequests)
+            {
+                var b = input.get();
+
+                if (!inMessage)
+                {
+                    if (b != START_BLOCK_CHAR)
+                    {
+                        throw new IOException("Missing start block character");
+                    }
+                    inMessage = true;
+                }
+                else if (afterEndBlock)
+                {
+                    if (b == CARRIAGE_RETURN)
+                    {
+                        dispatch(Arrays.copyOf(message, messageLength));
+                        messageLength = 0;
+                        inMessage = false;
+                        afterEndBlock = false;
+                    }
+                    else
+                    {
+                        append(END_BLOCK_CHAR);
+                        if (b != END_BLOCK_CHAR)
+                        {
+                            append(b);
+                            afterEndBlock = false;
+                        }
+                    }
+                }
+                else if (b == END_BLOCK_CHAR)
+                {
+                    afterEndBlock = true;
+                }
+                else
+                {
+                    append(b);
+                }
+            }
+        }
+
+        private void append(byte b) throws IOException
+        {
+            if (messageLength == message.length)
+            {
+                if (messageLength >= maxMessageSize)
+                {
+                    throw new IOException("Message exceeds " + maxMessageSize + " bytes");
+                }
+                message = Arrays.copyOf(message, Math.min(maxMessageSize, messageLength * 2));
+            }
+
+            message[messageLength++] = b;
+        }
+
+        private void dispatch(byte[] request)
+        {
+            ++requests;
+
+            var executor = workers;
+            if (executor == null)
+            {
+                return;
+            }
+
+            var receivedAt = System.nanoTime();
+            var response = CompletableFuture.supplyAsync(() -> {
+                var encoded = endpoint.handle(new String(request, StandardCharsets.UTF_8));
+                durationHistogram.record((System.nanoTime() - receivedAt) / 1e6);
+                return encoded != null ? frame(encoded) : null;
+            }, executor);
+            pending.add(response);
+
+            response.whenComplete((result, throwable) -> {
+                completed.add(this);
+                var openedSelector = selector;
+                if (openedSelector != null)
+                {
+                    openedSelector.wakeup();
+                }
+            });
+        }
+
+        private void sendCompleted()
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            try
+            {
+                while (!pending.isEmpty() && pending.peek().isDone())
+                {
+                    var response = pending.poll();
+                    var bytes = response.isCompletedExceptionally() ? null : response.join();
+                    if (bytes == null)
+                    {
+                        // Cannot answer, so the client must not wait for a response
+                        close();
+                        return;
+                    }
+
+                    output.add(ByteBuffer.wrap(bytes));
+                }
+
+                var input = unread;
+                if (input != null)
+                {
+                    parse(input);
+                    if (!input.hasRemaining())
+                    {
+                        unread = null;
+                    }
+                }
+
+                write();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Closing MLLP connection", e);
+                close();
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Closing failed MLLP connection", e);
+                close();
+            }
+        }
+
+        private void write() throws IOException
+        {
+            while (!output.isEmpty())
+            {
+                var buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                {
+                    break;
+                }
+                output.poll();
+            }
+
+            update();
+        }
+
+        /**
+         * Reads only while not too many requests are pending and no bytes read are left unparsed, and writes only
+         * while responses wait to be sent.
+         */
+        private void update()
+        {
+            if (inputClosed && pending.isEmpty() && output.isEmpty())
+            {
+                close();
+                return;
+            }
+
+            var selectionKey = key;
+            if (selectionKey != null && selectionKey.isValid())
+            {
+                var ops = 0;
+                if (!inputClosed && unread == null && pending.size() < maxPipelinedRequests)
+                {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (!output.isEmpty())
+                {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                selectionKey.interestOps(ops);
+            }
+        }
+
+        private void sample(long now)
+        {
+            if (now > sampledAt)
+            {
+                throughputHistogram.record((requests - sampledRequests) * 1000.0 / (now - sampledAt));
+            }
+
+            sampledAt = now;
+            sampledRequests = requests;
+        }
+
+        private void close()
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+
+            var selectionKey = key;
+            if (selectionKey != null)
+            {
+                selectionKey.cancel();
+            }
+            closeQuietly(channel);
+
+            sample(System.currentTimeMillis());
+            requestsHistogram.record(requests);
+            connectionCounter.add(-1);
+
+            logger.debug("Closed MLLP connection after {} requests in {} ms", requests,
+                System.currentTimeMillis() - openedAt);
+        }
+    }
+}
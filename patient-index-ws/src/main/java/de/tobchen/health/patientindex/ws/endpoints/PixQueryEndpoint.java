@@ -4,17 +4,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+
 import org.springframework.ws.server.endpoint.annotation.Endpoint;
 import org.springframework.ws.server.endpoint.annotation.RequestPayload;
 import org.springframework.ws.server.endpoint.annotation.ResponsePayload;
 import org.springframework.ws.soap.addressing.server.annotation.Action;
 
 import de.tobchen.health.patientindex.ws.model.schemas.II;
-import de.tobchen.health.patientindex.ws.model.schemas.PRPAIN201309UV02;
 import de.tobchen.health.patientindex.ws.model.schemas.PRPAIN201310UV02;
 import de.tobchen.health.patientindex.ws.services.QueryService;
 import de.tobchen.health.patientindex.ws.util.Hl7v3Utilities;
+import de.tobchen.health.patientindex.ws.util.PixQueryRequest;
 import de.tobchen.health.patientindex.ws.util.PixQueryResponseBuilder;
+import jakarta.xml.bind.JAXBException;
 
 @Endpoint
 public class PixQueryEndpoint
@@ -26,10 +30,16 @@ public class PixQueryEndpoint
         this.queryService = queryService;
     }
 
+    /**
+     * Takes the payload as it is instead of unmarshalling the whole message, see {@link PixQueryRequest}.
+     */
     @Action(value = "urn:hl7-org:v3:PRPA_IN201309UV02", output = "urn:hl7-org:v3:PRPA_IN201310UV02")
-    public @ResponsePayload PRPAIN201310UV02 query(@RequestPayload PRPAIN201309UV02 request)
+    public @ResponsePayload PRPAIN201310UV02 query(@RequestPayload Source payload)
+        throws JAXBException, TransformerException
     {
-        var parameterList = request.getControlActProcess().getQueryByParameter().getValue().getParameterList();
+        var request = PixQueryRequest.read(payload);
+
+        var parameterList = request.queryByParameter().getValue().getParameterList();
 
         var patientIdentifier = parameterList.getPatientIdentifier().get(0).getValue().get(0);
         var idSystem = patientIdentifier.getRoot();
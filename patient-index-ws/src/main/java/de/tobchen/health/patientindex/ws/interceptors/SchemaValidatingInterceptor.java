@@ -0,0 +1,105 @@
+package de.tobchen.health.patientindex.ws.interceptors;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.lang.Nullable;
+import org.springframework.ws.context.MessageContext;
+import org.springframework.ws.server.EndpointInterceptor;
+import org.springframework.ws.soap.SoapMessage;
+import org.xml.sax.SAXException;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+
+/**
+ * Validates request payloads against the PIX query schema (PRPA_IN201309UV02), answering invalid ones with a
+ * client fault. The schema is compiled once, it is thread-safe and shared by all requests. Payloads are
+ * validated as they are, without being copied or parsed again.
+ */
+public class SchemaValidatingInterceptor implements EndpointInterceptor
+{
+    private static final String SCHEMA = "schemas/hl7v3-ne2008/multicacheschemas/PRPA_IN201309UV02.xsd";
+
+    private static final Attributes VALID = Attributes.of(AttributeKey.stringKey("result"), "valid");
+    private static final Attributes INVALID = Attributes.of(AttributeKey.stringKey("result"), "invalid");
+
+    private final Logger logger = LoggerFactory.getLogger(SchemaValidatingInterceptor.class);
+
+    private final Schema schema;
+
+    private final DoubleHistogram validationDuration;
+
+    public SchemaValidatingInterceptor(OpenTelemetry openTelemetry) throws IOException, SAXException
+    {
+        var startedAt = System.nanoTime();
+        this.schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(new ClassPathResource(SCHEMA).getURL());
+        logger.info("Compiled schema {} in {} ms", SCHEMA, (System.nanoTime() - startedAt) / 1000000);
+
+        var meter = openTelemetry.getMeter(SchemaValidatingInterceptor.class.getName());
+        this.validationDuration = meter.histogramBuilder("patient_index.ws.validation.duration")
+            .setDescription("Time to validate a request payload against the schema, by result")
+            .setUnit("ms")
+            .build();
+    }
+
+    @Override
+    public boolean handleRequest(MessageContext messageContext, Object endpoint) throws IOException
+    {
+        var payload = messageContext.getRequest().getPayloadSource();
+        if (payload == null)
+        {
+            return true;
+        }
+
+        // Validators are cheap to create but not thread-safe
+        var validator = schema.newValidator();
+
+        var startedAt = System.nanoTime();
+        try
+        {
+            validator.validate(payload);
+            validationDuration.record((System.nanoTime() - startedAt) / 1e6, VALID);
+            return true;
+        }
+        catch (SAXException e)
+        {
+            validationDuration.record((System.nanoTime() - startedAt) / 1e6, INVALID);
+            logger.debug("Rejecting invalid request", e);
+
+            if (messageContext.getResponse() instanceof SoapMessage response)
+            {
+                response.getSoapBody().addClientOrSenderFault("Validation error: " + e.getMessage(), Locale.ENGLISH);
+            }
+
+            return false;
+        }
+    }
+
+    @Override
+    public boolean handleResponse(MessageContext messageContext, Object endpoint)
+    {
+        return true;
+    }
+
+    @Override
+    public boolean handleFault(MessageContext messageContext, Object endpoint)
+    {
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(MessageContext messageContext, Object endpoint, @Nullable Exception ex)
+    {
+    }
+}
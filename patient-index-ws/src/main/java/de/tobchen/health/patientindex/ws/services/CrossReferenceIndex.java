@@ -0,0 +1,638 @@
+package de.tobchen.health.patientindex.ws.services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Maps identifiers to the identifiers of the active patients they belong to, kept in primitive arrays.
+ * Identifiers are keys of the form {@code oid|value}, a patient's id being one of its identifiers (under the
+ * PID OID). Every key is stored once and referred to by an int id, patients are the ids of their PID keys.
+ * Versions of patients are kept after they become inactive, so outdated changes are never applied.
+ * <p>
+ * Optionally, the index is layered on a memory-mapped snapshot: patients changed since are held in memory and
+ * take precedence. Writing a new snapshot moves all patients held in memory into it.
+ */
+class CrossReferenceIndex
+{
+    private static final int NONE = -1;
+    private static final int SHARED = -2;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Held while changing patients, so snapshots see no changes while written
+    private final Object applyLock = new Object();
+
+    @Nullable
+    private volatile CrossReferenceSnapshot snapshot = null;
+
+    private Dictionary keys = new Dictionary();
+
+    // By key id: the identifiers of the active patient with this PID key (or null)
+    private int[][] members = new int[Dictionary.INITIAL_CAPACITY][];
+    // By key id: the version last applied to the patient with this PID key (or 0)
+    private long[] versions = new long[Dictionary.INITIAL_CAPACITY];
+    // By key id: the patient having this identifier, NONE, or SHARED if several have it
+    private int[] owners = newOwners(Dictionary.INITIAL_CAPACITY);
+    // Owners of identifiers several patients have, which is rare
+    private Map<Integer, int[]> sharedOwners = new HashMap<>();
+
+    private int activePatients = 0;
+
+    /**
+     * Replaces the patient's identifiers, unless a change of the same or a later version was applied before.
+     *
+     * @return Whether the change was applied
+     */
+    boolean apply(String pidKey, long version, boolean active, List<String> identifierKeys)
+    {
+        synchronized (applyLock)
+        {
+            lock.writeLock().lock();
+            try
+            {
+                return applyLocked(pidKey, version, active, identifierKeys);
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private boolean applyLocked(String pidKey, long version, boolean active, List<String> identifierKeys)
+    {
+        var patient = id(pidKey);
+
+        var knownVersion = versions[patient];
+        var currentSnapshot = snapshot;
+        if (knownVersion == 0 && currentSnapshot != null)
+        {
+            var snapshotPatient = snapshotPatient(currentSnapshot, pidKey);
+            if (snapshotPatient != NONE)
+            {
+                knownVersion = currentSnapshot.version(snapshotPatient);
+            }
+        }
+
+        if (knownVersion >= version)
+        {
+            releaseIfUnused(patient);
+            return false;
+        }
+
+        var previous = members[patient];
+        if (previous != null)
+        {
+            for (var member : previous)
+            {
+                removeOwner(member, patient);
+            }
+            members[patient] = null;
+            --activePatients;
+        }
+
+        if (active)
+        {
+            var current = new int[identifierKeys.size() + 1];
+            var count = 0;
+
+            current[count++] = patient;
+            addOwner(patient, patient);
+
+            for (var identifierKey : identifierKeys)
+            {
+                var member = id(identifierKey);
+                if (!contains(current, count, member))
+                {
+                    current[count++] = member;
+                    addOwner(member, patient);
+                }
+            }
+
+            members[patient] = count == current.length ? current : Arrays.copyOf(current, count);
+            ++activePatients;
+        }
+
+        versions[patient] = version;
+
+        if (previous != null)
+        {
+            for (var member : previous)
+            {
+                releaseIfUnused(member);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Collects the identifiers of all active patients having the given identifier, by OID.
+     */
+    Map<String, Set<String>> find(String key)
+    {
+        var systemValuesMap = new HashMap<String, Set<String>>();
+
+        lock.readLock().lock();
+        try
+        {
+            var id = keys.find(key);
+            if (id != NONE)
+            {
+                var owner = owners[id];
+                if (owner == SHARED)
+                {
+                    for (var patient : sharedOwners.get(id))
+                    {
+                        populate(systemValuesMap, patient);
+                    }
+                }
+                else if (owner != NONE)
+                {
+                    populate(systemValuesMap, owner);
+                }
+            }
+
+            var currentSnapshot = snapshot;
+            if (currentSnapshot != null)
+            {
+                var snapshotKey = currentSnapshot.findKey(key);
+                if (snapshotKey != CrossReferenceSnapshot.NONE)
+                {
+                    for (int i = 0; i < currentSnapshot.ownerCount(snapshotKey); ++i)
+                    {
+                        var snapshotPatient = currentSnapshot.owner(snapshotKey, i);
+                        var pidKey = currentSnapshot.key(currentSnapshot.pidKeyOf(snapshotPatient));
+
+                        // Patients changed since the snapshot are answered from memory above
+                        if (!isHeldInMemory(pidKey))
+                        {
+                            populate(systemValuesMap, currentSnapshot, snapshotPatient);
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        return systemValuesMap;
+    }
+
+    /**
+     * Layers the index on a snapshot, to be called before any change is applied.
+     */
+    void useSnapshot(CrossReferenceSnapshot snapshot)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            this.snapshot = snapshot;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all patients to a new snapshot and moves the index onto it, freeing the memory held for patients.
+     * Changes wait until the snapshot is written, queries are answered meanwhile.
+     */
+    void writeSnapshot(Path path, long highWaterMark) throws IOException
+    {
+        synchronized (applyLock)
+        {
+            var entries = new ArrayList<CrossReferenceSnapshot.Entry>();
+
+            // Queries do not change the index, so no lock is needed for reading while changes wait
+            var currentSnapshot = snapshot;
+            if (currentSnapshot != null)
+            {
+                for (int patient = 0; patient < currentSnapshot.patientCount(); ++patient)
+                {
+                    var pidKey = currentSnapshot.key(currentSnapshot.pidKeyOf(patient));
+                    if (!isHeldInMemory(pidKey))
+                    {
+                        List<String> patientMembers = null;
+                        var memberCount = currentSnapshot.memberCount(patient);
+                        if (memberCount > 0)
+                        {
+                            patientMembers = new ArrayList<>(memberCount);
+                            for (int i = 0; i < memberCount; ++i)
+                            {
+                                patientMembers.add(currentSnapshot.key(currentSnapshot.member(patient, i)));
+                            }
+                        }
+
+                        entries.add(new CrossReferenceSnapshot.Entry(pidKey, currentSnapshot.version(patient),
+                            patientMembers));
+                    }
+                }
+            }
+
+            for (int patient = 0; patient < versions.length; ++patient)
+            {
+                if (versions[patient] != 0)
+                {
+                    List<String> patientMembers = null;
+                    if (members[patient] != null)
+                    {
+                        patientMembers = new ArrayList<>(members[patient].length);
+                        for (var member : members[patient])
+                        {
+                            patientMembers.add(keys.get(member));
+                        }
+                    }
+
+                    entries.add(new CrossReferenceSnapshot.Entry(keys.get(patient), versions[patient],
+                        patientMembers));
+                }
+            }
+
+            CrossReferenceSnapshot.write(path, highWaterMark, entries);
+            var written = CrossReferenceSnapshot.open(path);
+
+            lock.writeLock().lock();
+            try
+            {
+                snapshot = written;
+
+                keys = new Dictionary();
+                members = new int[Dictionary.INITIAL_CAPACITY][];
+                versions = new long[Dictionary.INITIAL_CAPACITY];
+                owners = newOwners(Dictionary.INITIAL_CAPACITY);
+                sharedOwners = new HashMap<>();
+                activePatients = 0;
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return Active patients held in memory (changed since the snapshot)
+     */
+    int activePatients()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return activePatients;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Identifiers held in memory (of patients changed since the snapshot)
+     */
+    int identifiers()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return keys.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Active patients in the snapshot, including those changed since
+     */
+    int snapshotActivePatients()
+    {
+        var currentSnapshot = snapshot;
+        return currentSnapshot != null ? currentSnapshot.activePatientCount() : 0;
+    }
+
+    /**
+     * @return Identifiers in the snapshot, including those of patients changed since
+     */
+    int snapshotIdentifiers()
+    {
+        var currentSnapshot = snapshot;
+        return currentSnapshot != null ? currentSnapshot.keyCount() : 0;
+    }
+
+    private boolean isHeldInMemory(String pidKey)
+    {
+        var id = keys.find(pidKey);
+        return id != NONE && versions[id] != 0;
+    }
+
+    private static int snapshotPatient(CrossReferenceSnapshot snapshot, String pidKey)
+    {
+        var key = snapshot.findKey(pidKey);
+        return key != CrossReferenceSnapshot.NONE ? snapshot.patientOfKey(key) : CrossReferenceSnapshot.NONE;
+    }
+
+    private static void populate(Map<String, Set<String>> systemValuesMap, CrossReferenceSnapshot snapshot,
+        int patient)
+    {
+        for (int i = 0; i < snapshot.memberCount(patient); ++i)
+        {
+            populate(systemValuesMap, snapshot.key(snapshot.member(patient, i)));
+        }
+    }
+
+    private void populate(Map<String, Set<String>> systemValuesMap, int patient)
+    {
+        var patientMembers = members[patient];
+        if (patientMembers == null)
+        {
+            return;
+        }
+
+        for (var member : patientMembers)
+        {
+            populate(systemValuesMap, keys.get(member));
+        }
+    }
+
+    private static void populate(Map<String, Set<String>> systemValuesMap, String key)
+    {
+        var separator = key.indexOf('|');
+
+        systemValuesMap
+            .computeIfAbsent(key.substring(0, separator), system -> new HashSet<>())
+            .add(key.substring(separator + 1));
+    }
+
+    private int id(String key)
+    {
+        var id = keys.add(key);
+
+        if (id >= owners.length)
+        {
+            var capacity = Math.max(owners.length * 2, id + 1);
+            members = Arrays.copyOf(members, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+
+            var previousLength = owners.length;
+            owners = Arrays.copyOf(owners, capacity);
+            Arrays.fill(owners, previousLength, capacity, NONE);
+        }
+
+        return id;
+    }
+
+    private void addOwner(int id, int patient)
+    {
+        var owner = owners[id];
+        if (owner == NONE)
+        {
+            owners[id] = patient;
+        }
+        else if (owner == SHARED)
+        {
+            var patients = sharedOwners.get(id);
+            if (!contains(patients, patients.length, patient))
+            {
+                patients = Arrays.copyOf(patients, patients.length + 1);
+                patients[patients.length - 1] = patient;
+                sharedOwners.put(id, patients);
+            }
+        }
+        else if (owner != patient)
+        {
+            owners[id] = SHARED;
+            sharedOwners.put(id, new int[] { owner, patient });
+        }
+    }
+
+    private void removeOwner(int id, int patient)
+    {
+        var owner = owners[id];
+        if (owner == patient)
+        {
+            owners[id] = NONE;
+        }
+        else if (owner == SHARED)
+        {
+            var patients = sharedOwners.get(id);
+
+            var remaining = new int[patients.length - 1];
+            var count = 0;
+            for (var other : patients)
+            {
+                if (other != patient && count < remaining.length)
+                {
+                    remaining[count++] = other;
+                }
+            }
+
+            if (count == 1)
+            {
+                owners[id] = remaining[0];
+                sharedOwners.remove(id);
+            }
+            else
+            {
+                sharedOwners.put(id, Arrays.copyOf(remaining, count));
+            }
+        }
+    }
+
+    private void releaseIfUnused(int id)
+    {
+        // PID keys stay for their version, so outdated changes are still recognized
+        if (owners[id] == NONE && members[id] == null && versions[id] == 0)
+        {
+            keys.remove(id);
+        }
+    }
+
+    private static boolean contains(int[] array, int length, int value)
+    {
+        for (int i = 0; i < length; ++i)
+        {
+            if (array[i] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] newOwners(int capacity)
+    {
+        var array = new int[capacity];
+        Arrays.fill(array, NONE);
+        return array;
+    }
+
+    /**
+     * Assigns ints to strings, using open addressing with linear probing. Ids of removed strings are reused.
+     */
+    private static final class Dictionary
+    {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        // By slot: the string and its id
+        private String[] slotKeys = new String[INITIAL_CAPACITY * 2];
+        private int[] slotIds = new int[INITIAL_CAPACITY * 2];
+
+        // By id: the string (or null if the id is free)
+        private String[] strings = new String[INITIAL_CAPACITY];
+        private int[] freeIds = new int[16];
+        private int freeCount = 0;
+        private int nextId = 0;
+
+        private int size = 0;
+
+        int size()
+        {
+            return size;
+        }
+
+        String get(int id)
+        {
+            return strings[id];
+        }
+
+        int find(String key)
+        {
+            var mask = slotKeys.length - 1;
+            for (var slot = hash(key) & mask; slotKeys[slot] != null; slot = (slot + 1) & mask)
+            {
+                if (slotKeys[slot].equals(key))
+                {
+                    return slotIds[slot];
+                }
+            }
+            return NONE;
+        }
+
+        int add(String key)
+        {
+            var mask = slotKeys.length - 1;
+            var slot = hash(key) & mask;
+            for (; slotKeys[slot] != null; slot = (slot + 1) & mask)
+            {
+                if (slotKeys[slot].equals(key))
+                {
+                    return slotIds[slot];
+                }
+            }
+
+            int id;
+            if (freeCount > 0)
+            {
+                id = freeIds[--freeCount];
+            }
+            else
+            {
+                id = nextId++;
+                if (id >= strings.length)
+                {
+                    strings = Arrays.copyOf(strings, strings.length * 2);
+                }
+            }
+
+            slotKeys[slot] = key;
+            slotIds[slot] = id;
+            strings[id] = key;
+            ++size;
+
+            // Keeps the load factor at most one half, so probe sequences stay short
+            if (size * 2 > slotKeys.length)
+            {
+                rehash(slotKeys.length * 2);
+            }
+
+            return id;
+        }
+
+        void remove(int id)
+        {
+            var key = strings[id];
+            if (key == null)
+            {
+                return;
+            }
+
+            var mask = slotKeys.length - 1;
+            var slot = hash(key) & mask;
+            while (!key.equals(slotKeys[slot]))
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            // Shifts later entries of the probe sequence back instead of leaving a tombstone
+            var next = (slot + 1) & mask;
+            while (slotKeys[next] != null)
+            {
+                var ideal = hash(slotKeys[next]) & mask;
+                var movable = slot <= next
+                    ? ideal <= slot || ideal > next
+                    : ideal <= slot && ideal > next;
+                if (movable)
+                {
+                    slotKeys[slot] = slotKeys[next];
+                    slotIds[slot] = slotIds[next];
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+            slotKeys[slot] = null;
+
+            strings[id] = null;
+            if (freeCount == freeIds.length)
+            {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[freeCount++] = id;
+            --size;
+        }
+
+        private void rehash(int capacity)
+        {
+            var previousKeys = slotKeys;
+            var previousIds = slotIds;
+
+            slotKeys = new String[capacity];
+            slotIds = new int[capacity];
+
+            var mask = capacity - 1;
+            for (int i = 0; i < previousKeys.length; ++i)
+            {
+                var key = previousKeys[i];
+                if (key != null)
+                {
+                    var slot = hash(key) & mask;
+                    while (slotKeys[slot] != null)
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    slotKeys[slot] = key;
+                    slotIds[slot] = previousIds[i];
+                }
+            }
+        }
+
+        private static int hash(String key)
+        {
+            var h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
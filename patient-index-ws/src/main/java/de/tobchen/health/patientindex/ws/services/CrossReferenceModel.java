@@ -0,0 +1,486 @@
+package de.tobchen.health.patientindex.ws.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+
+import org.hl7.fhir.r5.model.InstantType;
+import org.hl7.fhir.r5.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.AsyncConsumerStartedEvent;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
+import de.tobchen.health.patientindex.commons.parsers.ReusableJsonParser;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+
+/**
+ * Keeps a cross-reference read model of all active patients' identifiers in memory, if enabled.
+ * It is bootstrapped from the Patient Index's snapshot and kept current by the resource changes it publishes.
+ * Changes are applied by version, so the snapshot and changes may arrive in any order. Whenever the change
+ * consumer restarts (and changes may have been missed), the snapshot is loaded again.
+ * <p>
+ * With a snapshot file configured, the model is periodically written to it. On startup the file is mapped
+ * and only patients changed since its high-water mark (less a margin) are loaded from the Patient Index.
+ * <p>
+ * Independently, a Bloom filter of all known identifiers can be kept, so queries for identifiers the Patient
+ * Index has never seen are answered without asking it. It takes far less memory than the read model.
+ */
+@Service
+public class CrossReferenceModel implements SmartLifecycle
+{
+    private static final Attributes MEMORY_LAYER = Attributes.of(AttributeKey.stringKey("layer"), "memory");
+    private static final Attributes SNAPSHOT_LAYER = Attributes.of(AttributeKey.stringKey("layer"), "snapshot");
+
+    private static final Attributes ABSENT = Attributes.of(AttributeKey.stringKey("result"), "absent");
+    private static final Attributes MAYBE_PRESENT = Attributes.of(AttributeKey.stringKey("result"), "maybe_present");
+
+    private final Logger logger = LoggerFactory.getLogger(CrossReferenceModel.class);
+
+    private final boolean enabled;
+    private final boolean indexEnabled;
+    private final long retryIntervalMillis;
+    private final String snapshotUri;
+    private final String pidOid;
+
+    @Nullable
+    private final Path snapshotFile;
+    private final long snapshotIntervalMillis;
+    private final long replayMarginMillis;
+
+    private final ReusableJsonParser parser;
+
+    private final ConnectionFactory connectionFactory;
+    private final Queue queue;
+    private final ApplicationEventPublisher applicationEventPublisher;
+
+    private final CrossReferenceIndex index = new CrossReferenceIndex();
+    @Nullable
+    private final KnownIdentifierFilter filter;
+
+    private final DoubleHistogram applyLag;
+    private final LongCounter filterLookups;
+
+    // Set once a snapshot was loaded, until then queries go to the Patient Index
+    private volatile boolean ready = false;
+    // Time of the newest change known to be applied (snapshots count as of their start)
+    private final AtomicLong currentAsOf = new AtomicLong();
+    // Newest last update of all applied patients, changes since then are loaded after restarts
+    private final AtomicLong highWaterMark = new AtomicLong();
+
+    private final AtomicBoolean bootstrapPending = new AtomicBoolean();
+    private final AtomicBoolean consumerStarted = new AtomicBoolean();
+
+    @Nullable
+    private volatile SimpleMessageListenerContainer container = null;
+    @Nullable
+    private ScheduledExecutorService bootstrapper = null;
+    private volatile boolean running = false;
+
+    public CrossReferenceModel(ReusableJsonParser jsonParser, ConnectionFactory connectionFactory, Queue crossReferenceQueue,
+        ApplicationEventPublisher applicationEventPublisher, OpenTelemetry openTelemetry, PatientIndexConfig config)
+    {
+        var crossReferenceConfig = config.crossReference();
+        var filterConfig = crossReferenceConfig.filter();
+        this.indexEnabled = crossReferenceConfig.enabled();
+        this.filter = filterConfig.enabled()
+            ? new KnownIdentifierFilter(filterConfig.expectedIdentifiers(), filterConfig.falsePositiveRate())
+            : null;
+        this.enabled = indexEnabled || filter != null;
+        this.retryIntervalMillis = crossReferenceConfig.retryInterval().toMillis();
+        this.snapshotUri = config.fhir().server() + "/Patient/$snapshot";
+        this.pidOid = config.pid().oid();
+
+        var snapshotFileName = crossReferenceConfig.snapshotFile();
+        this.snapshotFile = snapshotFileName != null ? Path.of(snapshotFileName) : null;
+        this.snapshotIntervalMillis = crossReferenceConfig.snapshotInterval().toMillis();
+        this.replayMarginMillis = crossReferenceConfig.replayMargin().toMillis();
+
+        this.parser = jsonParser;
+
+        this.connectionFactory = connectionFactory;
+        this.queue = crossReferenceQueue;
+        this.applicationEventPublisher = applicationEventPublisher;
+
+        var meter = openTelemetry.getMeter(CrossReferenceModel.class.getName());
+        meter.gaugeBuilder("patient_index.ws.cross_reference.staleness")
+            .setDescription("Time since the newest change applied to the cross-reference read model was made")
+            .setUnit("s")
+            .buildWithCallback(measurement -> {
+                if (ready)
+                {
+                    measurement.record((System.currentTimeMillis() - currentAsOf.get()) / 1000.0);
+                }
+            });
+        meter.gaugeBuilder("patient_index.ws.cross_reference.patients")
+            .setDescription("Active patients in the cross-reference read model, by layer")
+            .ofLongs()
+            .buildWithCallback(measurement -> {
+                measurement.record(index.activePatients(), MEMORY_LAYER);
+                measurement.record(index.snapshotActivePatients(), SNAPSHOT_LAYER);
+            });
+        meter.gaugeBuilder("patient_index.ws.cross_reference.identifiers")
+            .setDescription("Identifiers in the cross-reference read model, by layer")
+            .ofLongs()
+            .buildWithCallback(measurement -> {
+                measurement.record(index.identifiers(), MEMORY_LAYER);
+                measurement.record(index.snapshotIdentifiers(), SNAPSHOT_LAYER);
+            });
+        this.applyLag = meter.histogramBuilder("patient_index.ws.cross_reference.apply.lag")
+            .setDescription("Time from a resource change until it is applied to the cross-reference read model")
+            .setUnit("ms")
+            .build();
+
+        var knownIdentifiers = filter;
+        if (knownIdentifiers != null)
+        {
+            meter.gaugeBuilder("patient_index.ws.cross_reference.filter.false_positive_rate")
+                .setDescription("False-positive rate to be expected from the known identifier filter's fill")
+                .buildWithCallback(measurement -> measurement.record(knownIdentifiers.estimatedFalsePositiveRate()));
+        }
+        this.filterLookups = meter.counterBuilder("patient_index.ws.cross_reference.filter.lookups")
+            .setDescription("Lookups in the known identifier filter, by result")
+            .build();
+    }
+
+    /**
+     * Answers like {@link QueryService#findIdentifiers(String, String)} from memory.
+     *
+     * @return The identifiers by OID, or null if the read model is not available
+     */
+    public @Nullable Map<String, Set<String>> findIdentifiers(String system, String value)
+    {
+        if (!ready || !indexEnabled)
+        {
+            return null;
+        }
+
+        return index.find(system + "|" + value);
+    }
+
+    /**
+     * @return True if the Patient Index certainly knows no patient with this identifier, false if it may
+     */
+    public boolean isUnknown(String system, String value)
+    {
+        var knownIdentifiers = filter;
+        if (!ready || knownIdentifiers == null)
+        {
+            return false;
+        }
+
+        var unknown = !knownIdentifiers.mightContain(system + "|" + value);
+        filterLookups.add(1, unknown ? ABSENT : MAYBE_PRESENT);
+        return unknown;
+    }
+
+    @EventListener
+    public void consumerStarted(AsyncConsumerStartedEvent event)
+    {
+        if (event.getSource() == container && consumerStarted.getAndSet(true))
+        {
+            logger.info("Change consumer restarted, reloading snapshot");
+            requestBootstrap();
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        running = true;
+
+        if (filter != null)
+        {
+            logger.info("Keeping known identifier filter of {} bits", filter.bitCount());
+        }
+
+        // The snapshot file holds the read model, there is none without it
+        var file = indexEnabled ? snapshotFile : null;
+        if (file != null && Files.exists(file))
+        {
+            try
+            {
+                var snapshot = CrossReferenceSnapshot.open(file);
+                index.useSnapshot(snapshot);
+                if (filter != null)
+                {
+                    for (int key = 0; key < snapshot.keyCount(); ++key)
+                    {
+                        filter.add(snapshot.key(key));
+                    }
+                }
+                highWaterMark.set(snapshot.highWaterMark());
+                logger.info("Mapped snapshot of {} patients as of {}", snapshot.patientCount(),
+                    Instant.ofEpochMilli(snapshot.highWaterMark()));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.warn("Cannot map snapshot " + file + ", loading all patients", e);
+            }
+        }
+
+        // Subscribes first, so no change made while the snapshot is loaded is missed
+        var listenerContainer = new SimpleMessageListenerContainer(connectionFactory);
+        listenerContainer.setQueues(queue);
+        listenerContainer.setMessageListener(this::changed);
+        // A change that cannot be applied now will not be applicable later either
+        listenerContainer.setDefaultRequeueRejected(false);
+        listenerContainer.setApplicationEventPublisher(applicationEventPublisher);
+        listenerContainer.afterPropertiesSet();
+        container = listenerContainer;
+        listenerContainer.start();
+
+        var executor = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("cross-reference-bootstrap").factory());
+        bootstrapper = executor;
+        requestBootstrap();
+
+        if (file != null)
+        {
+            executor.scheduleWithFixedDelay(() -> writeSnapshot(file), snapshotIntervalMillis, snapshotIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        running = false;
+
+        var listenerContainer = container;
+        if (listenerContainer != null)
+        {
+            listenerContainer.stop();
+            listenerContainer.destroy();
+            container = null;
+        }
+
+        var executor = bootstrapper;
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            bootstrapper = null;
+        }
+
+        ready = false;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    private void changed(Message message)
+    {
+        var patient = parser.parse(Patient.class, message.getBody());
+        apply(patient);
+
+        var timestamp = message.getMessageProperties().getTimestamp();
+        if (timestamp != null)
+        {
+            currentAsOf.accumulateAndGet(timestamp.getTime(), Math::max);
+            applyLag.record(System.currentTimeMillis() - timestamp.getTime());
+        }
+    }
+
+    private void requestBootstrap()
+    {
+        var executor = bootstrapper;
+        if (executor != null && !bootstrapPending.getAndSet(true))
+        {
+            executor.execute(this::bootstrap);
+        }
+    }
+
+    private void bootstrap()
+    {
+        bootstrapPending.set(false);
+
+        while (running)
+        {
+            try
+            {
+                var startedAt = System.currentTimeMillis();
+
+                // Commits may become visible out of order of their last update, hence the margin
+                var since = highWaterMark.get() > 0 ? highWaterMark.get() - replayMarginMillis : null;
+                var count = loadSnapshot(since);
+
+                currentAsOf.accumulateAndGet(startedAt, Math::max);
+                ready = true;
+
+                logger.info("Loaded {} patients {} in {} ms", count,
+                    since != null ? "changed since " + Instant.ofEpochMilli(since) : "from snapshot",
+                    System.currentTimeMillis() - startedAt);
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.warn("Cannot load snapshot, retrying", e);
+            }
+
+            try
+            {
+                Thread.sleep(retryIntervalMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void writeSnapshot(Path file)
+    {
+        if (!ready)
+        {
+            return;
+        }
+
+        try
+        {
+            var startedAt = System.currentTimeMillis();
+            index.writeSnapshot(file, highWaterMark.get());
+            logger.info("Wrote snapshot in {} ms", System.currentTimeMillis() - startedAt);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.error("Cannot write snapshot " + file, e);
+        }
+    }
+
+    private long loadSnapshot(@Nullable Long since) throws IOException, InterruptedException
+    {
+        var uri = since != null
+            ? snapshotUri + "?since=" + URLEncoder.encode(new InstantType(new Date(since)).getValueAsString(),
+                StandardCharsets.UTF_8)
+            : snapshotUri;
+
+        var request = HttpRequest.newBuilder(URI.create(uri))
+            .header("Accept-Encoding", "gzip")
+            .GET()
+            .build();
+
+        try (var client = HttpClient.newHttpClient())
+        {
+            var response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+            try (var body = response.body())
+            {
+                if (response.statusCode() != 200)
+                {
+                    throw new IOException("Snapshot request failed with status " + response.statusCode());
+                }
+
+                var gzipped = response.headers().firstValue("Content-Encoding")
+                    .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                    .orElse(false);
+
+                var reader = new BufferedReader(new InputStreamReader(
+                    gzipped ? new GZIPInputStream(body) : body, StandardCharsets.UTF_8));
+
+                long count = 0;
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (!line.isBlank())
+                    {
+                        apply(parser.parse(Patient.class, line));
+                        ++count;
+                    }
+                }
+
+                return count;
+            }
+        }
+    }
+
+    private void apply(Patient patient)
+    {
+        var versionId = patient.getMeta().getVersionId();
+        if (versionId == null)
+        {
+            logger.warn("Ignoring patient {} without version", patient.getIdPart());
+            return;
+        }
+
+        var identifierKeys = new ArrayList<String>();
+        for (var identifier : patient.getIdentifier())
+        {
+            var system = identifier.getSystem();
+            var value = identifier.getValue();
+            if (system != null && system.startsWith("urn:oid:") && value != null)
+            {
+                identifierKeys.add(system.substring(8) + "|" + value);
+            }
+        }
+
+        var pidKey = pidOid + "|" + patient.getIdPart();
+
+        if (indexEnabled)
+        {
+            index.apply(pidKey, Long.parseLong(versionId), patient.getActive(), identifierKeys);
+        }
+
+        // Inactive patients' identifiers are kept too, a filter must never deny an identifier the index knows
+        if (filter != null)
+        {
+            filter.add(pidKey);
+            for (var identifierKey : identifierKeys)
+            {
+                filter.add(identifierKey);
+            }
+        }
+
+        var lastUpdated = patient.getMeta().getLastUpdated();
+        if (lastUpdated != null)
+        {
+            highWaterMark.accumulateAndGet(lastUpdated.getTime(), Math::max);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package de.tobchen.health.patientindex.ws.services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A read-only cross-reference index in a memory-mapped file, so it is available right after startup and lives
+ * outside the heap. The file holds, after a header:
+ * <ol>
+ * <li>the keys ({@code oid|value}) as UTF-8, one after the other,</li>
+ * <li>a table of keys sorted by their bytes: position, length, position and count of their owners, patient,</li>
+ * <li>the owners (active patients having a key) as patient numbers,</li>
+ * <li>a table of patients: PID key, version, position and count of their members,</li>
+ * <li>the members (identifiers of active patients) as key numbers.</li>
+ * </ol>
+ * Inactive patients have no members but keep their version.
+ */
+final class CrossReferenceSnapshot
+{
+    static final int NONE = -1;
+
+    private static final int MAGIC = 0x50495858;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 56;
+    private static final int KEY_ENTRY_SIZE = 20;
+    private static final int PATIENT_ENTRY_SIZE = 20;
+
+    private final long highWaterMark;
+    private final int keyCount;
+    private final int patientCount;
+    private final int activePatientCount;
+
+    private final MappedByteBuffer pool;
+    private final MappedByteBuffer keys;
+    private final MappedByteBuffer owners;
+    private final MappedByteBuffer patients;
+    private final MappedByteBuffer members;
+
+    private CrossReferenceSnapshot(long highWaterMark, int keyCount, int patientCount, int activePatientCount,
+        MappedByteBuffer pool, MappedByteBuffer keys, MappedByteBuffer owners, MappedByteBuffer patients,
+        MappedByteBuffer members)
+    {
+        this.highWaterMark = highWaterMark;
+        this.keyCount = keyCount;
+        this.patientCount = patientCount;
+        this.activePatientCount = activePatientCount;
+
+        this.pool = pool;
+        this.keys = keys;
+        this.owners = owners;
+        this.patients = patients;
+        this.members = members;
+    }
+
+    static CrossReferenceSnapshot open(Path path) throws IOException
+    {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION)
+            {
+                throw new IOException("Not a cross-reference snapshot of format " + FORMAT_VERSION + ": " + path);
+            }
+
+            var highWaterMark = header.getLong(8);
+            var keyCount = header.getInt(16);
+            var patientCount = header.getInt(20);
+            var activePatientCount = header.getInt(24);
+            var poolLength = header.getLong(32);
+            var ownerCount = header.getLong(40);
+            var memberCount = header.getLong(48);
+
+            long position = HEADER_SIZE;
+
+            var pool = map(channel, position, poolLength);
+            position += poolLength;
+
+            var keys = map(channel, position, (long) keyCount * KEY_ENTRY_SIZE);
+            position += (long) keyCount * KEY_ENTRY_SIZE;
+
+            var owners = map(channel, position, ownerCount * Integer.BYTES);
+            position += ownerCount * Integer.BYTES;
+
+            var patients = map(channel, position, (long) patientCount * PATIENT_ENTRY_SIZE);
+            position += (long) patientCount * PATIENT_ENTRY_SIZE;
+
+            var members = map(channel, position, memberCount * Integer.BYTES);
+            position += memberCount * Integer.BYTES;
+
+            if (position != channel.size())
+            {
+                throw new IOException("Cross-reference snapshot is truncated or oversized: " + path);
+            }
+
+            // Mappings stay valid after the channel is closed
+            return new CrossReferenceSnapshot(highWaterMark, keyCount, patientCount, activePatientCount,
+                pool, keys, owners, patients, members);
+        }
+    }
+
+    /**
+     * Writes patients to a new snapshot, replacing the file only once it is complete.
+     */
+    static void write(Path path, long highWaterMark, List<Entry> entries) throws IOException
+    {
+        // Sorts the distinct keys by their UTF-8 bytes, which is the order lookups compare in
+        var distinctKeys = new HashMap<String, byte[]>();
+        for (var entry : entries)
+        {
+            distinctKeys.computeIfAbsent(entry.pidKey(), CrossReferenceSnapshot::utf8);
+            if (entry.members() != null)
+            {
+                for (var member : entry.members())
+                {
+                    distinctKeys.computeIfAbsent(member, CrossReferenceSnapshot::utf8);
+                }
+            }
+        }
+
+        var sortedKeys = new ArrayList<>(distinctKeys.entrySet());
+        sortedKeys.sort((a, b) -> Arrays.compareUnsigned(a.getValue(), b.getValue()));
+
+        var keyNumbers = new HashMap<String, Integer>(sortedKeys.size() * 2);
+        long poolLength = 0;
+        for (int i = 0; i < sortedKeys.size(); ++i)
+        {
+            keyNumbers.put(sortedKeys.get(i).getKey(), i);
+            poolLength += sortedKeys.get(i).getValue().length;
+        }
+
+        var keyPatients = new int[sortedKeys.size()];
+        Arrays.fill(keyPatients, NONE);
+        var ownerCounts = new int[sortedKeys.size()];
+        var activePatientCount = 0;
+        long memberCount = 0;
+
+        for (int patient = 0; patient < entries.size(); ++patient)
+        {
+            var entry = entries.get(patient);
+            keyPatients[keyNumbers.get(entry.pidKey())] = patient;
+
+            if (entry.members() != null)
+            {
+                ++activePatientCount;
+                memberCount += entry.members().size();
+                for (var member : entry.members())
+                {
+                    ++ownerCounts[keyNumbers.get(member)];
+                }
+            }
+        }
+
+        var ownerStarts = new int[sortedKeys.size()];
+        long ownerCount = 0;
+        for (int key = 0; key < sortedKeys.size(); ++key)
+        {
+            ownerStarts[key] = (int) ownerCount;
+            ownerCount += ownerCounts[key];
+        }
+
+        var ownerList = new int[(int) ownerCount];
+        var ownerFill = ownerStarts.clone();
+        for (int patient = 0; patient < entries.size(); ++patient)
+        {
+            var entryMembers = entries.get(patient).members();
+            if (entryMembers != null)
+            {
+                for (var member : entryMembers)
+                {
+                    ownerList[ownerFill[keyNumbers.get(member)]++] = patient;
+                }
+            }
+        }
+
+        var directory = path.toAbsolutePath().getParent();
+        if (directory != null)
+        {
+            Files.createDirectories(directory);
+        }
+
+        var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)))
+        {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(highWaterMark);
+            output.writeInt(sortedKeys.size());
+            output.writeInt(entries.size());
+            output.writeInt(activePatientCount);
+            output.writeInt(0);
+            output.writeLong(poolLength);
+            output.writeLong(ownerCount);
+            output.writeLong(memberCount);
+
+            for (var key : sortedKeys)
+            {
+                output.write(key.getValue());
+            }
+
+            long poolPosition = 0;
+            for (int key = 0; key < sortedKeys.size(); ++key)
+            {
+                var length = sortedKeys.get(key).getValue().length;
+                output.writeInt((int) poolPosition);
+                output.writeInt(length);
+                output.writeInt(ownerStarts[key]);
+                output.writeInt(ownerCounts[key]);
+                output.writeInt(keyPatients[key]);
+                poolPosition += length;
+            }
+
+            for (var owner : ownerList)
+            {
+                output.writeInt(owner);
+            }
+
+            long memberPosition = 0;
+            for (var entry : entries)
+            {
+                var entryMembers = entry.members();
+                var count = entryMembers != null ? entryMembers.size() : 0;
+                output.writeInt(keyNumbers.get(entry.pidKey()));
+                output.writeLong(entry.version());
+                output.writeInt((int) memberPosition);
+                output.writeInt(count);
+                memberPosition += count;
+            }
+
+            for (var entry : entries)
+            {
+                if (entry.members() != null)
+                {
+                    for (var member : entry.members())
+                    {
+                        output.writeInt(keyNumbers.get(member));
+                    }
+                }
+            }
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    long highWaterMark()
+    {
+        return highWaterMark;
+    }
+
+    int keyCount()
+    {
+        return keyCount;
+    }
+
+    int patientCount()
+    {
+        return patientCount;
+    }
+
+    int activePatientCount()
+    {
+        return activePatientCount;
+    }
+
+    /**
+     * Finds a key by binary search over the sorted key table.
+     *
+     * @return The key's number, or NONE
+     */
+    int findKey(String key)
+    {
+        var bytes = utf8(key);
+
+        var low = 0;
+        var high = keyCount - 1;
+        while (low <= high)
+        {
+            var middle = (low + high) >>> 1;
+            var comparison = compare(middle, bytes);
+            if (comparison < 0)
+            {
+                low = middle + 1;
+            }
+            else if (comparison > 0)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+
+        return NONE;
+    }
+
+    String key(int key)
+    {
+        var position = keys.getInt(key * KEY_ENTRY_SIZE);
+        var bytes = new byte[keys.getInt(key * KEY_ENTRY_SIZE + 4)];
+        pool.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int ownerCount(int key)
+    {
+        return keys.getInt(key * KEY_ENTRY_SIZE + 12);
+    }
+
+    int owner(int key, int index)
+    {
+        return owners.getInt((keys.getInt(key * KEY_ENTRY_SIZE + 8) + index) * Integer.BYTES);
+    }
+
+    /**
+     * @return The patient whose PID key this is, or NONE
+     */
+    int patientOfKey(int key)
+    {
+        return keys.getInt(key * KEY_ENTRY_SIZE + 16);
+    }
+
+    int pidKeyOf(int patient)
+    {
+        return patients.getInt(patient * PATIENT_ENTRY_SIZE);
+    }
+
+    long version(int patient)
+    {
+        return patients.getLong(patient * PATIENT_ENTRY_SIZE + 4);
+    }
+
+    int memberCount(int patient)
+    {
+        return patients.getInt(patient * PATIENT_ENTRY_SIZE + 16);
+    }
+
+    int member(int patient, int index)
+    {
+        return members.getInt((patients.getInt(patient * PATIENT_ENTRY_SIZE + 12) + index) * Integer.BYTES);
+    }
+
+    private int compare(int key, byte[] bytes)
+    {
+        var position = keys.getInt(key * KEY_ENTRY_SIZE);
+        var length = keys.getInt(key * KEY_ENTRY_SIZE + 4);
+
+        var common = Math.min(length, bytes.length);
+        for (int i = 0; i < common; ++i)
+        {
+            var comparison = Integer.compare(pool.get(position + i) & 0xff, bytes[i] & 0xff);
+            if (comparison != 0)
+            {
+                return comparison;
+            }
+        }
+
+        return Integer.compare(length, bytes.length);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException
+    {
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Cross-reference snapshot section exceeds 2 GiB");
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    private static byte[] utf8(String key)
+    {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A patient to be written, members being null for inactive patients.
+     */
+    record Entry(String pidKey, long version, @Nullable List<String> members) { }
+}
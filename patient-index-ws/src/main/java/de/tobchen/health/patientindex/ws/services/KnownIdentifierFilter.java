@@ -0,0 +1,130 @@
+package de.tobchen.health.patientindex.ws.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of identifier keys ({@code oid|value}): a key that was never added is reported as absent,
+ * a key that was added always as possibly present. Keys cannot be removed, removed identifiers only make
+ * false positives more likely. Adding and looking up keys is thread-safe and lock-free.
+ */
+final class KnownIdentifierFilter
+{
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+
+    private final AtomicLong setBits = new AtomicLong();
+
+    /**
+     * Sizes the filter for the expected number of keys at the given false-positive rate.
+     */
+    KnownIdentifierFilter(long expectedKeys, double falsePositiveRate)
+    {
+        if (expectedKeys < 1)
+        {
+            throw new IllegalArgumentException("Expected keys must be positive");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+        {
+            throw new IllegalArgumentException("False-positive rate must be between 0 and 1");
+        }
+
+        var ln2 = Math.log(2);
+        var bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        var wordCount = (bits + Long.SIZE - 1) / Long.SIZE;
+        if (wordCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Filter for " + expectedKeys + " keys is too large");
+        }
+
+        this.words = new AtomicLongArray((int) wordCount);
+        this.bitCount = wordCount * Long.SIZE;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * ln2));
+    }
+
+    void add(String key)
+    {
+        var h1 = hash(key);
+        var h2 = Long.rotateLeft(h1, 32) | 1;
+
+        for (int i = 0; i < hashCount; ++i)
+        {
+            var bit = bit(h1 + i * h2);
+            var index = (int) (bit >>> 6);
+            var mask = 1L << bit;
+
+            var word = words.get(index);
+            while ((word & mask) == 0)
+            {
+                var witness = words.compareAndExchange(index, word, word | mask);
+                if (witness == word)
+                {
+                    setBits.incrementAndGet();
+                    break;
+                }
+                word = witness;
+            }
+        }
+    }
+
+    /**
+     * @return False if the key was certainly never added
+     */
+    boolean mightContain(String key)
+    {
+        var h1 = hash(key);
+        var h2 = Long.rotateLeft(h1, 32) | 1;
+
+        for (int i = 0; i < hashCount; ++i)
+        {
+            var bit = bit(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The false-positive rate to be expected at the filter's current fill
+     */
+    double estimatedFalsePositiveRate()
+    {
+        return Math.pow((double) setBits.get() / bitCount, hashCount);
+    }
+
+    long bitCount()
+    {
+        return bitCount;
+    }
+
+    private long bit(long combinedHash)
+    {
+        // Kirsch-Mitzenmacher double hashing, the combined hash taken as unsigned
+        return Long.remainderUnsigned(combinedHash, bitCount);
+    }
+
+    /**
+     * 64-bit FNV-1a over the key's UTF-8 bytes, finished with the MurmurHash3 mixer so both halves are usable.
+     */
+    private static long hash(String key)
+    {
+        var hash = 0xcbf29ce484222325L;
+        for (var b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe34e53cdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
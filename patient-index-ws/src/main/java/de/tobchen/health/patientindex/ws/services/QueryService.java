@@ -1,7 +1,9 @@
 package de.tobchen.health.patientindex.ws.services;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -9,15 +11,21 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Identifier;
+import org.hl7.fhir.r5.model.Parameters;
 import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Reference;
 import org.springframework.stereotype.Service;
 
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.IClientExecutable;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import de.tobchen.health.patientindex.commons.configurations.PatientIndexConfig;
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.context.propagation.TextMapPropagator;
@@ -32,9 +40,16 @@ public class QueryService
 
     private final IGenericClient client;
 
+    private final CrossReferenceModel crossReferences;
+
     private final String pidOid;
+    private final boolean pixOperation;
+
+    // Patients read by id, revalidated with their version instead of being fetched again
+    private final Map<String, Patient> readCache;
+    private final LongCounter revalidatedCounter;
 
-    public QueryService(OpenTelemetry openTelemetry, IGenericClient client,
+    public QueryService(OpenTelemetry openTelemetry, IGenericClient client, CrossReferenceModel crossReferences,
         PatientIndexConfig config)
     {
         this.tracer = openTelemetry.getTracer(QueryService.class.getName());
@@ -53,7 +68,24 @@ public class QueryService
         
         this.client = client;
 
+        this.crossReferences = crossReferences;
+
         this.pidOid = config.pid().oid();
+        this.pixOperation = config.fhir().pixOperation();
+
+        var readCacheSize = config.fhir().readCacheSize();
+        this.readCache = Collections.synchronizedMap(new LinkedHashMap<String, Patient>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Patient> eldest)
+            {
+                return size() > readCacheSize;
+            }
+        });
+
+        var meter = openTelemetry.getMeter(QueryService.class.getName());
+        this.revalidatedCounter = meter.counterBuilder("patient_index.ws.read_cache.revalidated")
+            .setDescription("Reads answered from the cache after the server reported no modification")
+            .build();
     }
 
     public Map<String, Set<String>> findIdentifiers(String system, String value)
@@ -61,14 +93,37 @@ public class QueryService
         var span = tracer.spanBuilder("QueryService.findOtherIdentifiers").startSpan();
         try (var scope = span.makeCurrent())
         {
+            var knownSystemValuesMap = crossReferences.findIdentifiers(system, value);
+            span.setAttribute("patient_index.cross_reference", knownSystemValuesMap != null);
+            if (knownSystemValuesMap != null)
+            {
+                return knownSystemValuesMap;
+            }
+
             var systemValuesMap = new HashMap<String, Set<String>>();
 
+            var unknown = crossReferences.isUnknown(system, value);
+            span.setAttribute("patient_index.cross_reference.filtered", unknown);
+            if (unknown)
+            {
+                return systemValuesMap;
+            }
+
             if (system.equals(pidOid))
             {
+                var cached = readCache.get(value);
+
                 var executable = client
                     .read()
                     .resource(Patient.class)
                     .withId(value);
+                if (cached != null)
+                {
+                    // Sends If-None-Match, the server answers 304 if the version is still current
+                    executable = executable
+                        .ifVersionMatches(cached.getMeta().getVersionId())
+                        .returnResource(cached);
+                }
 
                 propagator.inject(Context.current(), executable, otelSetter);
 
@@ -76,9 +131,25 @@ public class QueryService
                 {
                     var patient = executable.execute();
 
+                    if (patient == cached)
+                    {
+                        revalidatedCounter.add(1);
+                    }
+                    else if (patient.getMeta().hasVersionId())
+                    {
+                        readCache.put(value, patient);
+                    }
+
                     populate(systemValuesMap, patient);
                 }
-                catch (ResourceNotFoundException e) { }
+                catch (ResourceNotFoundException e)
+                {
+                    readCache.remove(value);
+                }
+            }
+            else if (pixOperation)
+            {
+                crossReference(systemValuesMap, system, value);
             }
             else
             {
@@ -113,6 +184,52 @@ public class QueryService
         }
     }
 
+    /**
+     * Asks for only the identifiers of patients with $ihe-pix instead of searching them.
+     */
+    private void crossReference(Map<String, Set<String>> systemValuesMap, String system, String value)
+    {
+        var operation = client
+            .operation()
+            .onType(Patient.class)
+            .named("$ihe-pix")
+            .withSearchParameter(Parameters.class, "sourceIdentifier",
+                new TokenParam("urn:oid:" + system, value))
+            .useHttpGet();
+
+        propagator.inject(Context.current(), operation, otelSetter);
+
+        Parameters parameters;
+        try
+        {
+            parameters = operation.execute();
+        }
+        catch (ResourceNotFoundException | InvalidRequestException e)
+        {
+            // No active patient has the identifier, or the system is unknown altogether
+            return;
+        }
+
+        // Only active patients are returned
+        for (var parameter : parameters.getParameter())
+        {
+            if ("targetId".equals(parameter.getName()) && parameter.getValue() instanceof Reference reference)
+            {
+                populate(systemValuesMap, pidOid, reference.getReferenceElement().getIdPart());
+            }
+            else if ("targetIdentifier".equals(parameter.getName())
+                && parameter.getValue() instanceof Identifier identifier)
+            {
+                var identifierSystem = identifier.getSystem();
+                var identifierValue = identifier.getValue();
+                if (identifierSystem != null && identifierSystem.startsWith("urn:oid:") && identifierValue != null)
+                {
+                    populate(systemValuesMap, identifierSystem.substring(8), identifierValue);
+                }
+            }
+        }
+    }
+
     private void populate(Map<String, Set<String>> systemValuesMap, Patient patient)
     {
         if (patient.getActive())
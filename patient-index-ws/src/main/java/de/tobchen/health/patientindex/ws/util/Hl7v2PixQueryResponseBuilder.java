@@ -0,0 +1,159 @@
+package de.tobchen.health.patientindex.ws.util;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v25.message.QBP_Q21;
+import ca.uhn.hl7v2.model.v25.message.RSP_K23;
+import ca.uhn.hl7v2.model.v25.segment.ERR;
+import ca.uhn.hl7v2.model.v25.segment.MSH;
+import ca.uhn.hl7v2.model.v25.segment.PID;
+
+/**
+ * Builds the RSP^K23 response to a PIX query (QBP^Q23), see IHE ITI TF-2a 3.9.
+ */
+public class Hl7v2PixQueryResponseBuilder
+{
+    private final QBP_Q21 request;
+
+    public Hl7v2PixQueryResponseBuilder(QBP_Q21 request)
+    {
+        this.request = request;
+    }
+
+    /**
+     * @param foundIds The patient's other identifiers by OID, or null if the queried identifier is unknown
+     */
+    public RSP_K23 buildWithResult(@Nullable Map<String, Set<String>> foundIds) throws HL7Exception
+    {
+        if (foundIds == null)
+        {
+            // The queried identifier is QPD-3
+            return buildWithError("AE", 3, "204", "Unknown Key Identifier");
+        }
+
+        var response = new RSP_K23();
+
+        setSegment(response.getMSH());
+
+        response.getMSA().getAcknowledgmentCode().setValue("AA");
+        response.getMSA().getMessageControlID().setValue(request.getMSH().getMessageControlID().getValue());
+
+        var found = foundIds.values().stream().anyMatch(values -> !values.isEmpty());
+        setQueryAck(response, found ? "OK" : "NF");
+
+        if (found)
+        {
+            setSegment(response.getQUERY_RESPONSE().getPID(), foundIds);
+        }
+
+        return response;
+    }
+
+    /**
+     * @param field The field of QPD in error, or 0 if the error is not the query's
+     * @param errorCode The error code (HL7 table 0357)
+     */
+    public RSP_K23 buildWithError(String acknowledgmentCode, int field, String errorCode, String errorText)
+        throws HL7Exception
+    {
+        var response = new RSP_K23();
+
+        setSegment(response.getMSH());
+
+        response.getMSA().getAcknowledgmentCode().setValue(acknowledgmentCode);
+        response.getMSA().getMessageControlID().setValue(request.getMSH().getMessageControlID().getValue());
+
+        setSegment(response.getERR(), field, errorCode, errorText);
+
+        setQueryAck(response, acknowledgmentCode);
+
+        return response;
+    }
+
+    private void setSegment(MSH msh) throws HL7Exception
+    {
+        var requestMsh = request.getMSH();
+
+        msh.getFieldSeparator().setValue("|");
+        msh.getEncodingCharacters().setValue("^~\\&");
+
+        // Answers to the request's sender
+        msh.getSendingApplication().parse(requestMsh.getReceivingApplication().encode());
+        msh.getSendingFacility().parse(requestMsh.getReceivingFacility().encode());
+        msh.getReceivingApplication().parse(requestMsh.getSendingApplication().encode());
+        msh.getReceivingFacility().parse(requestMsh.getSendingFacility().encode());
+
+        msh.getDateTimeOfMessage().getTime().setValue(new Date());
+
+        var messageType = msh.getMessageType();
+        messageType.getMessageCode().setValue("RSP");
+        messageType.getTriggerEvent().setValue("K23");
+        messageType.getMessageStructure().setValue("RSP_K23");
+
+        msh.getMessageControlID().setValue(UUID.randomUUID().toString());
+
+        msh.getProcessingID().getProcessingID().setValue(requestMsh.getProcessingID().getProcessingID().getValue());
+
+        msh.getVersionID().getVersionID().setValue("2.5");
+
+        msh.getCharacterSet(0).setValue("UNICODE UTF-8");
+    }
+
+    private void setQueryAck(RSP_K23 response, String status) throws HL7Exception
+    {
+        var qak = response.getQAK();
+        var requestQpd = request.getQPD();
+
+        qak.getQueryTag().setValue(requestQpd.getQueryTag().getValue());
+        qak.getQueryResponseStatus().setValue(status);
+        qak.getMessageQueryName().parse(requestQpd.getMessageQueryName().encode());
+
+        // Echoes the query
+        response.getQPD().parse(requestQpd.encode());
+    }
+
+    private static void setSegment(ERR err, int field, String errorCode, String errorText) throws HL7Exception
+    {
+        if (field > 0)
+        {
+            var location = err.getErrorLocation(0);
+            location.getSegmentID().setValue("QPD");
+            location.getSegmentSequence().setValue("1");
+            location.getFieldPosition().setValue(String.valueOf(field));
+            location.getFieldRepetition().setValue("1");
+        }
+
+        var code = err.getHL7ErrorCode();
+        code.getIdentifier().setValue(errorCode);
+        code.getText().setValue(errorText);
+        code.getNameOfCodingSystem().setValue("HL70357");
+
+        err.getSeverity().setValue("E");
+    }
+
+    private static void setSegment(PID pid, Map<String, Set<String>> foundIds) throws HL7Exception
+    {
+        var repetition = 0;
+        for (var systemValues : foundIds.entrySet())
+        {
+            for (var value : systemValues.getValue())
+            {
+                var cx = pid.getPatientIdentifierList(repetition++);
+                cx.getIDNumber().setValue(value);
+
+                var assigningAuthority = cx.getAssigningAuthority();
+                assigningAuthority.getUniversalID().setValue(systemValues.getKey());
+                assigningAuthority.getUniversalIDType().setValue("ISO");
+            }
+        }
+
+        // Required, but the Patient Index does not keep names
+        pid.getPatientName(0).getFamilyName().getSurname().setValue(" ");
+    }
+}
@@ -0,0 +1,120 @@
+package de.tobchen.health.patientindex.ws.util;
+
+import javax.annotation.Nullable;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import de.tobchen.health.patientindex.ws.model.schemas.CS;
+import de.tobchen.health.patientindex.ws.model.schemas.II;
+import de.tobchen.health.patientindex.ws.model.schemas.PRPAMT201307UV02QueryByParameter;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.JAXBException;
+
+/**
+ * The parts of a PIX query (PRPA_IN201309UV02) that are answered or echoed, read from the request's DOM.
+ * Only the query by parameter is unmarshalled, the rest of the message (e.g. sender and receiver) is skipped.
+ */
+public record PixQueryRequest(
+    @Nullable II id,
+    @Nullable CS processingCode,
+    JAXBElement<PRPAMT201307UV02QueryByParameter> queryByParameter
+) {
+    private static final String HL7V3_NAMESPACE = "urn:hl7-org:v3";
+
+    private static final JAXBContext CONTEXT = createContext();
+
+    public static PixQueryRequest read(Source source) throws JAXBException, TransformerException
+    {
+        Node node;
+        if (source instanceof DOMSource domSource)
+        {
+            // SAAJ messages already are DOM
+            node = domSource.getNode();
+        }
+        else
+        {
+            var result = new DOMResult();
+            TransformerFactory.newInstance().newTransformer().transform(source, result);
+            node = result.getNode();
+        }
+
+        var root = node instanceof Document document ? document.getDocumentElement() : (Element) node;
+
+        II id = null;
+        CS processingCode = null;
+        Element queryByParameter = null;
+
+        for (var child = firstChild(root); child != null; child = nextSibling(child))
+        {
+            switch (child.getLocalName())
+            {
+                case "id" -> id = Hl7v3Utilities.createIi(attribute(child, "root"), attribute(child, "extension"));
+                case "processingCode" -> processingCode = Hl7v3Utilities.createCs(attribute(child, "code"));
+                case "controlActProcess" -> {
+                    for (var grandchild = firstChild(child); grandchild != null; grandchild = nextSibling(grandchild))
+                    {
+                        if ("queryByParameter".equals(grandchild.getLocalName()))
+                        {
+                            queryByParameter = grandchild;
+                            break;
+                        }
+                    }
+                }
+                default -> { }
+            }
+        }
+
+        if (queryByParameter == null)
+        {
+            throw new IllegalArgumentException("PIX query without queryByParameter");
+        }
+
+        return new PixQueryRequest(id, processingCode,
+            CONTEXT.createUnmarshaller().unmarshal(queryByParameter, PRPAMT201307UV02QueryByParameter.class));
+    }
+
+    private static @Nullable Element firstChild(Node parent)
+    {
+        return element(parent.getFirstChild());
+    }
+
+    private static @Nullable Element nextSibling(Node previous)
+    {
+        return element(previous.getNextSibling());
+    }
+
+    private static @Nullable Element element(@Nullable Node node)
+    {
+        while (node != null && !(node instanceof Element element && HL7V3_NAMESPACE.equals(element.getNamespaceURI())))
+        {
+            node = node.getNextSibling();
+        }
+
+        return (Element) node;
+    }
+
+    private static @Nullable String attribute(Element element, String name)
+    {
+        return element.hasAttribute(name) ? element.getAttribute(name) : null;
+    }
+
+    private static JAXBContext createContext()
+    {
+        try
+        {
+            return JAXBContext.newInstance(PRPAMT201307UV02QueryByParameter.class);
+        }
+        catch (JAXBException e)
+        {
+            throw new IllegalStateException("Cannot create JAXB context", e);
+        }
+    }
+}
@@ -17,7 +17,6 @@ import de.tobchen.health.patientindex.ws.model.schemas.MCCIMT000300UV01TargetMes
 import de.tobchen.health.patientindex.ws.model.schemas.MFMIMT700711UV01Custodian;
 import de.tobchen.health.patientindex.ws.model.schemas.MFMIMT700711UV01QueryAck;
 import de.tobchen.health.patientindex.ws.model.schemas.PN;
-import de.tobchen.health.patientindex.ws.model.schemas.PRPAIN201309UV02;
 import de.tobchen.health.patientindex.ws.model.schemas.PRPAIN201310UV02;
 import de.tobchen.health.patientindex.ws.model.schemas.PRPAIN201310UV02MFMIMT700711UV01ControlActProcess;
 import de.tobchen.health.patientindex.ws.model.schemas.PRPAIN201310UV02MFMIMT700711UV01RegistrationEvent;
@@ -36,14 +35,14 @@ public class PixQueryResponseBuilder
     private final CS processingCode;
     private final JAXBElement<PRPAMT201307UV02QueryByParameter> queryByParameter;
 
-    public PixQueryResponseBuilder(PRPAIN201309UV02 request)
+    public PixQueryResponseBuilder(PixQueryRequest request)
     {
         this.targetMessage = new MCCIMT000300UV01TargetMessage();
-        this.targetMessage.setId(request.getId());
+        this.targetMessage.setId(request.id());
 
-        this.processingCode = request.getProcessingCode();
+        this.processingCode = request.processingCode();
 
-        this.queryByParameter = request.getControlActProcess().getQueryByParameter();
+        this.queryByParameter = request.queryByParameter();
     }
 
     public PRPAIN201310UV02 buildWithResult(Collection<II> foundIds)